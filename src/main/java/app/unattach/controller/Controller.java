@@ -1,9 +1,11 @@
 package app.unattach.controller;
 
 import app.unattach.model.Email;
+import app.unattach.model.EmailFeed;
 import app.unattach.model.GetEmailMetadataTask;
-import app.unattach.model.ProcessEmailResult;
+import app.unattach.model.ProcessOption;
 import app.unattach.model.ProcessSettings;
+import app.unattach.model.ProcessingPipeline;
 import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
 
 import java.io.File;
@@ -17,15 +19,19 @@ public interface Controller {
   String createLabel(String name);
   void donate(String item, int amount, String currency);
   List<Email> getEmails();
+  EmailFeed getEmailFeed();
   String getEmailAddress() throws IOException;
   SortedMap<String, String> getIdToLabel();
   String getFilenameSchema();
   DefaultArtifactVersion getLatestVersion();
   String getOrCreateRemovedLabelId();
-  LongTask<ProcessEmailResult> getProcessTask(Email email, ProcessSettings processSettings);
+  ProcessingPipeline getProcessingPipeline(ProcessSettings processSettings, ProcessingPipeline.Listener listener);
+  List<List<Email>> getProcessingPlan(List<Email> emails, ProcessOption processOption, boolean mostSpaceFirst);
+  long getMillisUntilQuotaReset();
   String getRemovedLabelId();
   String getSearchQuery();
   GetEmailMetadataTask getSearchTask(String query) throws IOException, InterruptedException;
+  GetEmailMetadataTask getTieredSearchTask(String query, int minEmailSizeInMb);
   String getTargetDirectory();
   void openFile(File file);
   void openQueryLanguagePage();
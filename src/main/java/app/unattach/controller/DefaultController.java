@@ -48,6 +48,11 @@ public class DefaultController implements Controller {
     return model.getSearchTask(query);
   }
 
+  @Override
+  public GetEmailMetadataTask getTieredSearchTask(String query, int minEmailSizeInMb) {
+    return model.getTieredSearchTask(query, minEmailSizeInMb);
+  }
+
   @Override
   public String getTargetDirectory() {
     return model.getTargetDirectory();
@@ -85,8 +90,20 @@ public class DefaultController implements Controller {
   }
 
   @Override
-  public LongTask<ProcessEmailResult> getProcessTask(Email email, ProcessSettings processSettings) {
-    return model.getProcessTask(email, processSettings);
+  public ProcessingPipeline getProcessingPipeline(ProcessSettings processSettings,
+                                                  ProcessingPipeline.Listener listener) {
+    return model.getProcessingPipeline(processSettings, listener);
+  }
+
+  @Override
+  public List<List<Email>> getProcessingPlan(List<Email> emails, ProcessOption processOption,
+                                             boolean mostSpaceFirst) {
+    return model.getProcessingPlan(emails, processOption, mostSpaceFirst);
+  }
+
+  @Override
+  public long getMillisUntilQuotaReset() {
+    return model.getMillisUntilQuotaReset();
   }
 
   @Override
@@ -104,6 +121,11 @@ public class DefaultController implements Controller {
     return model.getEmails();
   }
 
+  @Override
+  public EmailFeed getEmailFeed() {
+    return model.getEmailFeed();
+  }
+
   @Override
   public void openUnattachHomepage() {
     openWebPage(Constants.HOMEPAGE);
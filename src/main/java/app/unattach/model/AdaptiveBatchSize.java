@@ -0,0 +1,39 @@
+package app.unattach.model;
+
+import java.util.logging.Logger;
+
+// Picks the size of the next metadata batch based on how the previous one went.
+class AdaptiveBatchSize {
+  private static final Logger LOGGER = Logger.getLogger(AdaptiveBatchSize.class.getName());
+
+  static final int MIN_SIZE = 1;
+  // The maximum number of requests in a single Gmail batch.
+  static final int MAX_SIZE = 100;
+  static final int INITIAL_SIZE = 40;
+  private static final int INCREASE_STEP = 10;
+  private static final long TARGET_LATENCY_MILLIS = 3000;
+  private static final long TARGET_PAYLOAD_BYTES = 2 * Constants.BYTES_IN_MEGABYTE;
+
+  private int size = INITIAL_SIZE;
+
+  int get() {
+    return size;
+  }
+
+  void onBatchCompleted(int batchSize, long latencyMillis, long payloadBytes, int throttled) {
+    int before = size;
+    if (throttled > 0) {
+      size = Math.max(MIN_SIZE, batchSize / 2);
+    } else if (latencyMillis > TARGET_LATENCY_MILLIS || payloadBytes > TARGET_PAYLOAD_BYTES) {
+      size = Math.max(MIN_SIZE, batchSize * 3 / 4);
+    } else if (batchSize >= size && latencyMillis < TARGET_LATENCY_MILLIS / 2 &&
+        payloadBytes < TARGET_PAYLOAD_BYTES / 2) {
+      // Only grow if the last batch was full, i.e. it was a real test of the current size.
+      size = Math.min(MAX_SIZE, size + INCREASE_STEP);
+    }
+    if (size != before) {
+      LOGGER.fine(String.format("Metadata batch size changed from %d to %d (latency: %dms, payload: %dB, " +
+          "throttled: %d).", before, size, latencyMillis, payloadBytes, throttled));
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package app.unattach.model;
+
+import com.google.api.client.http.javanet.ConnectionFactory;
+import com.google.api.client.http.javanet.DefaultConnectionFactory;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+// Opens the connections of the Gmail client. The JDK keeps idle connections per socket factory, so requests made for
+// cancellable work use a factory of their thread's own, and only ever reuse connections that the thread opened. The
+// factory binds those to the work's cancellation, so that CancellableSocketFactory can abort the requests by closing
+// them. Other requests share one pool, which cancellable work never takes connections from.
+class CancellableConnectionFactory implements ConnectionFactory {
+  private final ConnectionFactory delegate = new DefaultConnectionFactory();
+  private final SSLSocketFactory sslSocketFactory;
+  private final ThreadLocal<CancellableSocketFactory> cancellableSocketFactory;
+
+  // The transport must not set a socket factory of its own, since it would replace the one chosen here.
+  CancellableConnectionFactory(SSLSocketFactory sslSocketFactory) {
+    this.sslSocketFactory = sslSocketFactory;
+    cancellableSocketFactory = ThreadLocal.withInitial(() -> new CancellableSocketFactory(sslSocketFactory));
+  }
+
+  @Override
+  public HttpURLConnection openConnection(URL url) throws IOException {
+    Cancellation.throwIfCurrentCancelled();
+    HttpURLConnection connection = delegate.openConnection(url);
+    if (connection instanceof HttpsURLConnection) {
+      Cancellation cancellation = Cancellation.current();
+      SSLSocketFactory socketFactory = sslSocketFactory;
+      if (cancellation != null) {
+        CancellableSocketFactory threadSocketFactory = cancellableSocketFactory.get();
+        threadSocketFactory.bind(cancellation);
+        socketFactory = threadSocketFactory;
+      }
+      ((HttpsURLConnection) connection).setSSLSocketFactory(socketFactory);
+    }
+    return connection;
+  }
+}
@@ -0,0 +1,34 @@
+package app.unattach.model;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+// Fails the next write once the current work is cancelled, so that writing a large attachment stops right away.
+class CancellableOutputStream extends FilterOutputStream {
+  private final Cancellation cancellation;
+
+  CancellableOutputStream(OutputStream out) {
+    super(out);
+    cancellation = Cancellation.current();
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    throwIfCancelled();
+    out.write(b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    throwIfCancelled();
+    out.write(b, off, len);
+  }
+
+  private void throwIfCancelled() throws IOException {
+    if (cancellation != null && cancellation.isCancelled()) {
+      throw new InterruptedIOException("Cancelled.");
+    }
+  }
+}
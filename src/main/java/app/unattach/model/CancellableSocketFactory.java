@@ -0,0 +1,103 @@
+package app.unattach.model;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Closes the sockets of cancelled work. HttpURLConnection.disconnect() can't do that while a response is being read,
+// since the read holds a lock that disconnect() waits for. Each factory is used by a single thread, whose idle
+// connections are kept for it by the JDK, so all its sockets are bound to the cancellation of the thread's current
+// work, including the ones opened for earlier work.
+class CancellableSocketFactory extends SSLSocketFactory {
+  private final SSLSocketFactory delegate;
+  // the sockets that may still be open
+  private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+  private final Runnable closeSockets = this::closeSockets;
+  private Cancellation cancellation;
+
+  CancellableSocketFactory(SSLSocketFactory delegate) {
+    this.delegate = delegate;
+  }
+
+  // Called before each request of cancellable work.
+  synchronized void bind(Cancellation cancellation) {
+    if (this.cancellation == cancellation) {
+      return;
+    }
+    if (this.cancellation != null) {
+      this.cancellation.removeOnCancel(closeSockets);
+    }
+    this.cancellation = cancellation;
+    sockets.removeIf(Socket::isClosed);
+    cancellation.onCancel(closeSockets);
+  }
+
+  @Override
+  public String[] getDefaultCipherSuites() {
+    return delegate.getDefaultCipherSuites();
+  }
+
+  @Override
+  public String[] getSupportedCipherSuites() {
+    return delegate.getSupportedCipherSuites();
+  }
+
+  @Override
+  public Socket createSocket() throws IOException {
+    return register(delegate.createSocket());
+  }
+
+  @Override
+  public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+    // Closing a TLS socket can wait for a read in progress, while closing the socket beneath it aborts the read.
+    Socket layeredSocket = delegate.createSocket(socket, host, port, autoClose);
+    register(socket);
+    return layeredSocket;
+  }
+
+  @Override
+  public Socket createSocket(String host, int port) throws IOException {
+    return register(delegate.createSocket(host, port));
+  }
+
+  @Override
+  public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+    return register(delegate.createSocket(host, port, localHost, localPort));
+  }
+
+  @Override
+  public Socket createSocket(InetAddress host, int port) throws IOException {
+    return register(delegate.createSocket(host, port));
+  }
+
+  @Override
+  public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+      throws IOException {
+    return register(delegate.createSocket(address, port, localAddress, localPort));
+  }
+
+  private Socket register(Socket socket) {
+    sockets.add(socket);
+    Cancellation cancellation;
+    synchronized (this) {
+      cancellation = this.cancellation;
+    }
+    if (cancellation != null && cancellation.isCancelled()) {
+      // opened after the others were closed
+      closeSockets();
+    }
+    return socket;
+  }
+
+  private void closeSockets() {
+    for (Socket socket : sockets) {
+      try {
+        socket.close();
+      } catch (IOException ignored) {}
+      sockets.remove(socket);
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package app.unattach.model;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+// Aborts a unit of work (e.g. one stage of processing an email) from another thread, together with the Gmail requests
+// and file writes it has in flight. The work runs with the cancellation as the current one of its thread, and whatever
+// blocks on I/O registers a way of aborting itself. Threads aren't interrupted, since an interrupt would also close the
+// file channel of the shared quota.
+class Cancellation {
+  private static final ThreadLocal<Cancellation> CURRENT = new ThreadLocal<>();
+
+  private final List<Runnable> onCancel = new ArrayList<>();
+  private boolean cancelled;
+
+  void cancel() {
+    List<Runnable> actions;
+    synchronized (this) {
+      if (cancelled) {
+        return;
+      }
+      cancelled = true;
+      actions = new ArrayList<>(onCancel);
+      onCancel.clear();
+    }
+    actions.forEach(Runnable::run);
+  }
+
+  synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  // Runs the action right away if the work is already cancelled.
+  void onCancel(Runnable action) {
+    synchronized (this) {
+      if (!cancelled) {
+        onCancel.add(action);
+        return;
+      }
+    }
+    action.run();
+  }
+
+  synchronized void removeOnCancel(Runnable action) {
+    onCancel.remove(action);
+  }
+
+  <T> T call(Callable<T> work) throws Exception {
+    Cancellation previous = CURRENT.get();
+    CURRENT.set(this);
+    try {
+      return work.call();
+    } finally {
+      if (previous == null) {
+        CURRENT.remove();
+      } else {
+        CURRENT.set(previous);
+      }
+    }
+  }
+
+  static Cancellation current() {
+    return CURRENT.get();
+  }
+
+  static void throwIfCurrentCancelled() throws InterruptedIOException {
+    Cancellation cancellation = CURRENT.get();
+    if (cancellation != null && cancellation.isCancelled()) {
+      throw new InterruptedIOException("Cancelled.");
+    }
+  }
+}
@@ -0,0 +1,178 @@
+package app.unattach.model;
+
+import com.google.api.client.http.HttpResponseException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+// Additive-increase/multiplicative-decrease limit on the number of Gmail requests in flight.
+class ConcurrencyLimiter {
+  private static final Logger LOGGER = Logger.getLogger(ConcurrencyLimiter.class.getName());
+
+  static final int MIN_LIMIT = 1;
+  static final int MAX_LIMIT = 32;
+  private static final int INITIAL_LIMIT = 4;
+  private static final double DECREASE_FACTOR = 0.5;
+  // A call is considered a latency spike if it takes this many times longer than usual for its kind and size.
+  private static final double LATENCY_SPIKE_FACTOR = 4;
+  // Sizes within a factor of 4 of each other share their usual latency; everything below this shares the first bucket.
+  private static final long SIZE_BUCKET_BASE_BYTES = 64 * 1024;
+  private static final int LATENCY_WARM_UP_SAMPLES = 10;
+  private static final double LATENCY_SMOOTHING = 0.1;
+
+  interface Call<T> {
+    T execute() throws IOException;
+  }
+
+  private static class LatencyTracker {
+    private double averageNanos;
+    private int samples;
+  }
+
+  private final LongSupplier nanoClock;
+  // by kind and size bucket
+  private final Map<String, LatencyTracker> kindToLatency = new HashMap<>();
+  private double limit = INITIAL_LIMIT;
+  private int inFlight;
+  private long lastDecreaseNanos;
+  private long successes;
+  private long overloads;
+  private long latencySpikes;
+  private long errors;
+  private long increases;
+  private long decreases;
+
+  ConcurrencyLimiter() {
+    this(System::nanoTime);
+  }
+
+  ConcurrencyLimiter(LongSupplier nanoClock) {
+    this.nanoClock = nanoClock;
+    lastDecreaseNanos = nanoClock.getAsLong();
+  }
+
+  <T> T execute(String kind, Call<T> call) throws IOException {
+    return execute(kind, 0, call);
+  }
+
+  // For calls whose latency depends on how much they transfer, e.g. downloads of whole emails.
+  <T> T execute(String kind, long sizeInBytes, Call<T> call) throws IOException {
+    acquire();
+    long startNanos = nanoClock.getAsLong();
+    try {
+      T result = call.execute();
+      onSuccess(kind, sizeInBytes, startNanos, nanoClock.getAsLong());
+      return result;
+    } catch (IOException e) {
+      if (isOverload(e)) {
+        onOverload(startNanos);
+      } else {
+        onError();
+      }
+      throw e;
+    } finally {
+      release();
+    }
+  }
+
+  static boolean isOverload(IOException e) {
+    if (e instanceof HttpResponseException) {
+      return isOverload(((HttpResponseException) e).getStatusCode());
+    }
+    return false;
+  }
+
+  static boolean isOverload(int statusCode) {
+    return statusCode == 429 || statusCode >= 500;
+  }
+
+  private synchronized void acquire() throws InterruptedIOException {
+    try {
+      while (inFlight >= getLimit()) {
+        wait();
+      }
+      ++inFlight;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a free Gmail request slot.");
+    }
+  }
+
+  private synchronized void release() {
+    --inFlight;
+    notifyAll();
+  }
+
+  synchronized void onSuccess(String kind, long sizeInBytes, long startNanos, long endNanos) {
+    long latencyNanos = endNanos - startNanos;
+    LatencyTracker tracker =
+        kindToLatency.computeIfAbsent(kind + "/" + getSizeBucket(sizeInBytes), k -> new LatencyTracker());
+    boolean spike = tracker.samples >= LATENCY_WARM_UP_SAMPLES &&
+        latencyNanos > LATENCY_SPIKE_FACTOR * tracker.averageNanos;
+    if (tracker.samples == 0) {
+      tracker.averageNanos = latencyNanos;
+    } else {
+      tracker.averageNanos += LATENCY_SMOOTHING * (latencyNanos - tracker.averageNanos);
+    }
+    ++tracker.samples;
+    if (spike) {
+      ++latencySpikes;
+      decrease(startNanos);
+      return;
+    }
+    ++successes;
+    // Only grow while the current limit is actually being used.
+    if (inFlight >= (int) limit && limit < MAX_LIMIT) {
+      int before = getLimit();
+      limit = Math.min(MAX_LIMIT, limit + 1 / limit);
+      if (getLimit() != before) {
+        ++increases;
+        LOGGER.fine("Raised Gmail concurrency limit: " + getStatistics());
+      }
+    }
+  }
+
+  static int getSizeBucket(long sizeInBytes) {
+    long units = sizeInBytes / SIZE_BUCKET_BASE_BYTES;
+    return units == 0 ? 0 : (Long.SIZE - Long.numberOfLeadingZeros(units) + 1) / 2;
+  }
+
+  // For failures that don't surface as an exception of a call, e.g. sub-requests of a batch.
+  synchronized void onOverload(long startNanos) {
+    ++overloads;
+    decrease(startNanos);
+  }
+
+  private synchronized void onError() {
+    ++errors;
+  }
+
+  private void decrease(long startNanos) {
+    // Requests that were started before the last decrease don't reflect the current limit yet.
+    if (startNanos < lastDecreaseNanos) {
+      return;
+    }
+    lastDecreaseNanos = nanoClock.getAsLong();
+    limit = Math.max(MIN_LIMIT, limit * DECREASE_FACTOR);
+    ++decreases;
+    LOGGER.info("Lowered Gmail concurrency limit: " + getStatistics());
+  }
+
+  synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  synchronized String getStatistics() {
+    return String.format("limit=%d, inFlight=%d, successes=%d, overloads=%d, latencySpikes=%d, errors=%d, " +
+            "increases=%d, decreases=%d", getLimit(), inFlight, successes, overloads, latencySpikes, errors,
+        increases, decreases);
+  }
+}
@@ -0,0 +1,120 @@
+package app.unattach.model;
+
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.commons.io.output.ProxyOutputStream;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+// Layers TLS over sockets that count the bytes passing through them, so that what is counted is what actually goes
+// over the network, after compression and including the overhead of HTTP and TLS.
+class CountingSocketFactory extends SSLSocketFactory {
+  private final SSLSocketFactory delegate;
+  private final TrafficCounter trafficCounter;
+
+  CountingSocketFactory(SSLSocketFactory delegate, TrafficCounter trafficCounter) {
+    this.delegate = delegate;
+    this.trafficCounter = trafficCounter;
+  }
+
+  @Override
+  public String[] getDefaultCipherSuites() {
+    return delegate.getDefaultCipherSuites();
+  }
+
+  @Override
+  public String[] getSupportedCipherSuites() {
+    return delegate.getSupportedCipherSuites();
+  }
+
+  // HttpsURLConnection connects this socket, and then has TLS layered over it by createSocket(Socket, ...).
+  @Override
+  public Socket createSocket() {
+    return new CountingSocket(trafficCounter);
+  }
+
+  @Override
+  public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+    return delegate.createSocket(socket, host, port, autoClose);
+  }
+
+  @Override
+  public Socket createSocket(String host, int port) throws IOException {
+    return createSocket(new InetSocketAddress(host, port), null, host);
+  }
+
+  @Override
+  public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+    return createSocket(new InetSocketAddress(host, port), new InetSocketAddress(localHost, localPort), host);
+  }
+
+  @Override
+  public Socket createSocket(InetAddress host, int port) throws IOException {
+    return createSocket(new InetSocketAddress(host, port), null, host.getHostName());
+  }
+
+  @Override
+  public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+      throws IOException {
+    return createSocket(new InetSocketAddress(address, port), new InetSocketAddress(localAddress, localPort),
+        address.getHostName());
+  }
+
+  private Socket createSocket(InetSocketAddress address, InetSocketAddress localAddress, String host)
+      throws IOException {
+    Socket socket = new CountingSocket(trafficCounter);
+    try {
+      if (localAddress != null) {
+        socket.bind(localAddress);
+      }
+      socket.connect(address);
+      return delegate.createSocket(socket, host, address.getPort(), true);
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  static class CountingSocket extends Socket {
+    private final TrafficCounter trafficCounter;
+    private InputStream inputStream;
+    private OutputStream outputStream;
+
+    CountingSocket(TrafficCounter trafficCounter) {
+      this.trafficCounter = trafficCounter;
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+      if (inputStream == null) {
+        inputStream = new ProxyInputStream(super.getInputStream()) {
+          @Override
+          protected void afterRead(int n) {
+            if (n > 0) {
+              trafficCounter.onNetworkBytesReceived(n);
+            }
+          }
+        };
+      }
+      return inputStream;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+      if (outputStream == null) {
+        outputStream = new ProxyOutputStream(super.getOutputStream()) {
+          @Override
+          protected void afterWrite(int n) {
+            trafficCounter.onNetworkBytesSent(n);
+          }
+        };
+      }
+      return outputStream;
+    }
+  }
+}
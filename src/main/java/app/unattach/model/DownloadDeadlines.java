@@ -0,0 +1,60 @@
+package app.unattach.model;
+
+import java.util.Arrays;
+
+// Learns how long raw message downloads take, to pick per-download deadlines based on the size of the email.
+class DownloadDeadlines {
+  private static final long BASE_LATENCY_MILLIS = 1000;
+  private static final double INITIAL_BYTES_PER_MILLI = Constants.BYTES_IN_MEGABYTE / 1000.0;
+  private static final double THROUGHPUT_SMOOTHING = 0.2;
+  // Only downloads at least this large say anything about the throughput.
+  private static final long MIN_THROUGHPUT_SAMPLE_BYTES = 256 * 1024;
+  private static final int RATIO_WINDOW = 100;
+  private static final int MIN_RATIO_SAMPLES = 20;
+  private static final double HEDGE_PERCENTILE = 0.95;
+  private static final double DEFAULT_HEDGE_RATIO = 3;
+  private static final double TIMEOUT_TO_HEDGE_RATIO = 4;
+  private static final long MIN_HEDGE_MILLIS = 2000;
+  private static final long MIN_TIMEOUT_MILLIS = 20000;
+  static final long MAX_TIMEOUT_MILLIS = 3 * 60000;
+
+  private double bytesPerMilli = INITIAL_BYTES_PER_MILLI;
+  // Ratios of actual to expected download times of recent downloads.
+  private final double[] ratios = new double[RATIO_WINDOW];
+  private int numberOfRatios;
+  private int nextRatioIndex;
+
+  synchronized long getExpectedMillis(long sizeInBytes) {
+    return BASE_LATENCY_MILLIS + (long) (sizeInBytes / bytesPerMilli);
+  }
+
+  // After this long, a duplicate download is started, and whichever finishes first is used.
+  synchronized long getHedgeAfterMillis(long sizeInBytes) {
+    return Math.max(MIN_HEDGE_MILLIS, (long) (getExpectedMillis(sizeInBytes) * getHedgeRatio()));
+  }
+
+  synchronized long getTimeoutMillis(long sizeInBytes) {
+    long timeoutMillis = (long) (getHedgeAfterMillis(sizeInBytes) * TIMEOUT_TO_HEDGE_RATIO);
+    return Math.min(MAX_TIMEOUT_MILLIS, Math.max(MIN_TIMEOUT_MILLIS, timeoutMillis));
+  }
+
+  synchronized void onCompleted(long sizeInBytes, long millis) {
+    ratios[nextRatioIndex] = millis / (double) getExpectedMillis(sizeInBytes);
+    nextRatioIndex = (nextRatioIndex + 1) % RATIO_WINDOW;
+    numberOfRatios = Math.min(RATIO_WINDOW, numberOfRatios + 1);
+    long transferMillis = millis - BASE_LATENCY_MILLIS;
+    if (sizeInBytes >= MIN_THROUGHPUT_SAMPLE_BYTES && transferMillis > 0) {
+      double sampleBytesPerMilli = sizeInBytes / (double) transferMillis;
+      bytesPerMilli += THROUGHPUT_SMOOTHING * (sampleBytesPerMilli - bytesPerMilli);
+    }
+  }
+
+  private double getHedgeRatio() {
+    if (numberOfRatios < MIN_RATIO_SAMPLES) {
+      return DEFAULT_HEDGE_RATIO;
+    }
+    double[] sortedRatios = Arrays.copyOf(ratios, numberOfRatios);
+    Arrays.sort(sortedRatios);
+    return Math.max(1, sortedRatios[(int) (HEDGE_PERCENTILE * (numberOfRatios - 1))]);
+  }
+}
@@ -0,0 +1,24 @@
+package app.unattach.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Hands the emails found by a search over from the thread running it to the UI, as they are found.
+public class EmailFeed {
+  private final Queue<Email> emails = new ConcurrentLinkedQueue<>();
+
+  void publish(Email email) {
+    emails.add(email);
+  }
+
+  public List<Email> drain(int maxEmails) {
+    List<Email> drained = new ArrayList<>();
+    Email email;
+    while (drained.size() < maxEmails && (email = emails.poll()) != null) {
+      drained.add(email);
+    }
+    return drained;
+  }
+}
@@ -0,0 +1,127 @@
+package app.unattach.model;
+
+import com.google.api.services.gmail.model.ListMessagesResponse;
+import com.google.api.services.gmail.model.Message;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+// Pages through messages.list on background threads, so that the metadata of the first pages can be obtained while
+// the later ones are still being listed. A search can be split into shards (e.g. date windows), which are listed
+// concurrently and merged without duplicates.
+class EmailIdLister implements GetEmailMetadataTask.EmailIdSource {
+  private static final Logger LOGGER = Logger.getLogger(EmailIdLister.class.getName());
+  static final int MAX_CONCURRENT_SHARDS = 8;
+
+  interface PageLister {
+    ListMessagesResponse listPage(String pageToken) throws IOException;
+  }
+
+  private final ExecutorService executor;
+  private final Set<String> seenEmailIds = new HashSet<>();
+  private List<String> listed = new ArrayList<>();
+  private int remainingShards;
+  private boolean listingComplete;
+  private IOException failure;
+  private int numberOfPages;
+  private int numberOfDuplicates;
+
+  private EmailIdLister(int numberOfShards, int maxConcurrentShards) {
+    executor = Executors.newFixedThreadPool(Math.min(numberOfShards, maxConcurrentShards), runnable -> {
+      Thread thread = new Thread(runnable, "email-id-lister");
+      thread.setDaemon(true);
+      return thread;
+    });
+    remainingShards = numberOfShards;
+  }
+
+  static EmailIdLister start(PageLister pageLister) {
+    return start(Collections.singletonList(pageLister), 1);
+  }
+
+  // With at most one shard at a time, the shards are listed in the given order.
+  static EmailIdLister start(List<PageLister> shards, int maxConcurrentShards) {
+    EmailIdLister lister = new EmailIdLister(shards.size(), maxConcurrentShards);
+    shards.forEach(shard -> lister.executor.execute(() -> lister.listAll(shard)));
+    lister.executor.shutdown();
+    return lister;
+  }
+
+  private void listAll(PageLister pageLister) {
+    try {
+      String pageToken = null;
+      do {
+        ListMessagesResponse response = pageLister.listPage(pageToken);
+        if (response == null) {
+          break;
+        }
+        List<Message> messages = response.getMessages();
+        synchronized (this) {
+          ++numberOfPages;
+          if (messages != null) {
+            for (Message message : messages) {
+              if (seenEmailIds.add(message.getId())) {
+                listed.add(message.getId());
+              } else {
+                ++numberOfDuplicates;
+              }
+            }
+          }
+          notifyAll();
+        }
+        pageToken = response.getNextPageToken();
+      } while (pageToken != null && !Thread.currentThread().isInterrupted());
+    } catch (Throwable t) {
+      // Otherwise, the search would end as if all emails were listed.
+      synchronized (this) {
+        if (failure == null) {
+          failure = t instanceof IOException ? (IOException) t : new IOException("Failed to list emails.", t);
+        }
+      }
+      // The search fails anyway.
+      executor.shutdownNow();
+    } finally {
+      synchronized (this) {
+        if (--remainingShards == 0) {
+          listingComplete = true;
+          LOGGER.info("Listed " + seenEmailIds.size() + " emails in " + numberOfPages + " pages (" +
+              numberOfDuplicates + " duplicates).");
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  @Override
+  public synchronized List<String> takeListed() throws IOException {
+    if (failure != null) {
+      throw failure;
+    }
+    List<String> taken = listed;
+    listed = new ArrayList<>();
+    return taken;
+  }
+
+  @Override
+  public synchronized boolean isComplete() {
+    return listingComplete && listed.isEmpty() && failure == null;
+  }
+
+  @Override
+  public synchronized void awaitListed(long maxWaitMillis) throws InterruptedException {
+    long deadlineMillis = System.currentTimeMillis() + maxWaitMillis;
+    long waitMillis;
+    while (listed.isEmpty() && !listingComplete && failure == null &&
+        (waitMillis = deadlineMillis - System.currentTimeMillis()) > 0) {
+      wait(waitMillis);
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,86 @@
+package app.unattach.model;
+
+import com.google.api.services.gmail.model.Message;
+
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedFileInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// The state of one email as it moves through the stages of a ProcessingPipeline.
+class EmailJob {
+  private static final Logger LOGGER = Logger.getLogger(EmailJob.class.getName());
+
+  final Email email;
+  final ProcessSettings processSettings;
+  Message message;
+  // the downloaded email, which the parsed message reads its parts from
+  File rawFile;
+  SharedFileInputStream rawStream;
+  // Either the email is spliced, or, if its structure doesn't allow that, parsed.
+  SplicedMessage splicedMessage;
+  MimeMessage mimeMessage;
+  // Instead of the downloaded email, when only the attachments are needed.
+  List<FetchedBodyPart> fetchedBodyParts;
+  // the copy of the email without the attachments, as it will be uploaded
+  File slimFile;
+  Set<String> fileNames = Collections.emptySet();
+  String newMessageId;
+  // Set once the email started a stage that can't be cancelled, after which it runs to the end.
+  boolean committed;
+  // Set by a stage when the remaining stages have nothing left to do, e.g. when resuming after a restart.
+  boolean finished;
+  // Whether an earlier run was interrupted after starting this email, possibly after inserting its slim copy.
+  boolean resumed;
+  // Whether an earlier run inserted the slim copy, so that only the original is left to remove.
+  boolean inserted;
+  // how much of the pipeline's memory budget the email holds
+  long memoryBytes;
+
+  EmailJob(Email email, ProcessSettings processSettings) {
+    this.email = email;
+    this.processSettings = processSettings;
+  }
+
+  // Called once the downloaded email isn't needed any more, and when the email leaves the pipeline.
+  void deleteRawFile() {
+    if (fetchedBodyParts != null) {
+      fetchedBodyParts.forEach(FetchedBodyPart::deleteContentFile);
+      fetchedBodyParts = null;
+    }
+    try {
+      if (rawStream != null) {
+        rawStream.close();
+        rawStream = null;
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to close the downloaded email.", e);
+    }
+    if (rawFile != null) {
+      if (!rawFile.delete() && rawFile.exists()) {
+        LOGGER.warning("Failed to delete the downloaded email: " + rawFile);
+      }
+      rawFile = null;
+    }
+  }
+
+  // Called once the slim copy was uploaded, and when the email leaves the pipeline.
+  void deleteSlimFile() {
+    if (slimFile != null) {
+      if (!slimFile.delete() && slimFile.exists()) {
+        LOGGER.warning("Failed to delete the slim copy: " + slimFile);
+      }
+      slimFile = null;
+    }
+  }
+
+  // Whether the original email gets replaced by a copy without the attachments.
+  boolean shouldReplace() {
+    return processSettings.processOption.shouldRemove() && !fileNames.isEmpty();
+  }
+}
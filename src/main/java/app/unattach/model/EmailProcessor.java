@@ -9,15 +9,16 @@ import javax.mail.Multipart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeUtility;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.time.OffsetDateTime;
 import java.util.*;
 import java.util.logging.Logger;
@@ -45,7 +46,9 @@ class EmailProcessor {
   static Set<String> process(Email email, MimeMessage mimeMessage, ProcessSettings processSettings)
       throws IOException, MessagingException {
     EmailProcessor processor = new EmailProcessor(email, processSettings);
-    processor.exploreContent(mimeMessage.getContent());
+    if (mimeMessage.isMimeType("multipart/*")) {
+      processor.exploreMultipart((Multipart) mimeMessage.getContent());
+    }
     processor.removeCopiedBodyParts();
     if (processSettings.addMetadata) {
       processor.addReferencesToContent();
@@ -54,18 +57,54 @@ class EmailProcessor {
     return processor.originalToNormalizedFilename.keySet();
   }
 
-  private void exploreContent(Object content) throws MessagingException, IOException {
-    if (content instanceof Multipart) {
-      Multipart multipart = (Multipart) content;
-      for (int i = 0; i < multipart.getCount(); ++i) {
-        BodyPart bodyPart = multipart.getBodyPart(i);
-        handleBodyPart(bodyPart);
-        fixInvalidContentType(bodyPart);
-        exploreContent(bodyPart.getContent());
+  // Like the above, but only marks the changes, which the spliced message applies when it's written.
+  static Set<String> process(Email email, SplicedMessage splicedMessage, ProcessSettings processSettings)
+      throws IOException, MessagingException {
+    EmailProcessor processor = new EmailProcessor(email, processSettings);
+    processor.exploreParts(splicedMessage.getParts());
+    processor.copiedBodyParts.forEach(splicedMessage::remove);
+    if (processSettings.addMetadata) {
+      processor.addReferencesToContent().forEach(splicedMessage::markChanged);
+    }
+    return processor.originalToNormalizedFilename.keySet();
+  }
+
+  // Only the headers of a part are inspected, and only multiparts are parsed further, so that the content of an
+  // attachment is decoded once, when it's saved.
+  private void exploreMultipart(Multipart multipart) throws MessagingException, IOException {
+    for (int i = 0; i < multipart.getCount(); ++i) {
+      BodyPart bodyPart = multipart.getBodyPart(i);
+      handleBodyPart(bodyPart);
+      fixInvalidContentType(bodyPart);
+      if (bodyPart.isMimeType("multipart/*")) {
+        exploreMultipart((Multipart) bodyPart.getContent());
       }
     }
   }
 
+  // For emails whose structure was fetched without the content, which is only done when they aren't changed.
+  static Set<String> process(Email email, List<FetchedBodyPart> bodyParts, ProcessSettings processSettings)
+      throws IOException, MessagingException {
+    EmailProcessor processor = new EmailProcessor(email, processSettings);
+    for (FetchedBodyPart bodyPart : bodyParts) {
+      processor.handleBodyPart(bodyPart);
+    }
+    return processor.originalToNormalizedFilename.keySet();
+  }
+
+  // Whether the part is saved to disk.
+  static boolean isAttachment(BodyPart bodyPart) throws MessagingException {
+    return isDownloadableBodyPart(bodyPart) && bodyPart.getFileName() != null;
+  }
+
+  private void exploreParts(List<SplicedMessage.Part> parts) throws MessagingException, IOException {
+    for (SplicedMessage.Part part : parts) {
+      handleBodyPart(part.bodyPart);
+      fixInvalidContentType(part.bodyPart);
+      exploreParts(part.children);
+    }
+  }
+
   private void fixInvalidContentType(BodyPart bodyPart) throws MessagingException {
     String[] contentTypes = bodyPart.getHeader("Content-Type");
     if (contentTypes == null) {
@@ -93,12 +132,11 @@ class EmailProcessor {
     }
   }
 
-  private boolean isDownloadableBodyPart(BodyPart bodyPart) throws MessagingException {
+  private static boolean isDownloadableBodyPart(BodyPart bodyPart) throws MessagingException {
     return bodyPart.getDisposition() != null;
   }
 
   private void copyBodyPartToDisk(BodyPart bodyPart) throws IOException, MessagingException {
-    InputStream inputStream = bodyPart.getInputStream();
     String originalFilename = getFilename(bodyPart);
     if (originalFilename == null) {
       return;
@@ -109,7 +147,15 @@ class EmailProcessor {
       File targetFile = targetPath.toFile();
       //noinspection ResultOfMethodCallIgnored
       targetFile.getParentFile().mkdirs();
-      Files.copy(inputStream, targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      // The content is decoded as it's written, straight from the downloaded email.
+      try (InputStream inputStream = bodyPart.getInputStream();
+           OutputStream outputStream = new CancellableOutputStream(new FileOutputStream(targetFile))) {
+        inputStream.transferTo(outputStream);
+      } catch (IOException e) {
+        // Don't leave a partial attachment behind, e.g. when processing is stopped.
+        Files.deleteIfExists(targetFile.toPath());
+        throw e;
+      }
       //noinspection ResultOfMethodCallIgnored
       targetFile.setLastModified(email.getTimestamp());
     }
@@ -132,9 +178,11 @@ class EmailProcessor {
     }
   }
 
-  private void addReferencesToContent() throws IOException, MessagingException {
+  // Returns the body parts whose content was set.
+  private List<BodyPart> addReferencesToContent() throws IOException, MessagingException {
+    List<BodyPart> changedBodyParts = new ArrayList<>();
     if (originalToNormalizedFilename.size() == 0) {
-      return;
+      return changedBodyParts;
     }
     String dateTimeString = OffsetDateTime.now().toString();
     String hostname = getHostname();
@@ -142,12 +190,15 @@ class EmailProcessor {
       String text = mainTextBodyPart.getContent().toString();
       String newText = generateTextSuffix(text, originalToNormalizedFilename, dateTimeString, hostname);
       mainTextBodyPart.setContent(newText, "text/plain; charset=utf-8");
+      changedBodyParts.add(mainTextBodyPart);
     }
     if (mainHtmlBodyPart != null) {
       String html = mainHtmlBodyPart.getContent().toString();
       String newHtml = generateHtmlSuffix(html, originalToNormalizedFilename, dateTimeString, hostname);
       mainHtmlBodyPart.setContent(newHtml, "text/html; charset=utf-8");
+      changedBodyParts.add(mainHtmlBodyPart);
     }
+    return changedBodyParts;
   }
 
   private String getHostname() {
@@ -0,0 +1,80 @@
+package app.unattach.model;
+
+import com.google.api.services.gmail.model.MessagePart;
+import com.google.api.services.gmail.model.MessagePartHeader;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+// A part of an email whose structure was fetched without any content. The content of an attachment is fetched on its
+// own, to a file that the part is then read from.
+class FetchedBodyPart extends MimeBodyPart {
+  private static final Logger LOGGER = Logger.getLogger(FetchedBodyPart.class.getName());
+
+  // null if the content is in the structure, which is only the case for small parts
+  final String attachmentId;
+  final long sizeInBytes;
+  File contentFile;
+
+  private FetchedBodyPart(MessagePart messagePart) throws MessagingException {
+    super(getInternetHeaders(messagePart), new byte[0]);
+    attachmentId = messagePart.getBody() == null ? null : messagePart.getBody().getAttachmentId();
+    sizeInBytes = messagePart.getBody() == null || messagePart.getBody().getSize() == null ? 0 :
+        messagePart.getBody().getSize();
+  }
+
+  // Returns the parts in the order in which javax.mail would visit them, without the top-level one.
+  static List<FetchedBodyPart> getBodyParts(MessagePart payload) throws MessagingException {
+    List<FetchedBodyPart> bodyParts = new ArrayList<>();
+    addBodyParts(payload, bodyParts);
+    return bodyParts;
+  }
+
+  private static void addBodyParts(MessagePart messagePart, List<FetchedBodyPart> bodyParts)
+      throws MessagingException {
+    // Gmail also expands the parts of a forwarded email (message/rfc822), which javax.mail treats as a single part.
+    if (messagePart.getParts() == null || messagePart.getMimeType() == null ||
+        !messagePart.getMimeType().toLowerCase().startsWith("multipart/")) {
+      return;
+    }
+    for (MessagePart part : messagePart.getParts()) {
+      bodyParts.add(new FetchedBodyPart(part));
+      addBodyParts(part, bodyParts);
+    }
+  }
+
+  private static InternetHeaders getInternetHeaders(MessagePart messagePart) {
+    InternetHeaders headers = new InternetHeaders();
+    if (messagePart.getHeaders() != null) {
+      for (MessagePartHeader header : messagePart.getHeaders()) {
+        headers.addHeader(header.getName(), header.getValue());
+      }
+    }
+    return headers;
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException, MessagingException {
+    if (contentFile == null) {
+      throw new MessagingException("The content of the part wasn't fetched.");
+    }
+    return new FileInputStream(contentFile);
+  }
+
+  void deleteContentFile() {
+    if (contentFile != null) {
+      if (!contentFile.delete() && contentFile.exists()) {
+        LOGGER.warning("Failed to delete the fetched attachment: " + contentFile);
+      }
+      contentFile = null;
+    }
+  }
+}
@@ -4,58 +4,223 @@ import app.unattach.controller.LongTask;
 import app.unattach.controller.LongTaskException;
 
 import java.io.IOException;
-import java.util.List;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.function.LongSupplier;
 
 public class GetEmailMetadataTask implements LongTask<GetEmailMetadataTask.Result> {
+  // Supplies the IDs of the emails, possibly while they are still being listed.
+  interface EmailIdSource {
+    // Returns the IDs listed since the previous call, without waiting.
+    List<String> takeListed() throws IOException;
+    // Whether all IDs have been taken.
+    boolean isComplete();
+    // Waits until more IDs are listed or the listing ends, but at most the given time.
+    void awaitListed(long maxWaitMillis) throws InterruptedException;
+    default void close() {}
+  }
+
+  // For when all IDs are known upfront.
+  private static final EmailIdSource NO_MORE_EMAIL_IDS = new EmailIdSource() {
+    @Override
+    public List<String> takeListed() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isComplete() {
+      return true;
+    }
+
+    @Override
+    public void awaitListed(long maxWaitMillis) {}
+  };
+
   interface Worker {
-    void getEmailMetadata(int startIndexInclusive, int endIndexExclusive) throws IOException;
+    BatchResult getEmailMetadata(List<String> emailIds) throws IOException;
+  }
+
+  static class BatchResult {
+    // The IDs of emails whose metadata could not be obtained due to a transient error.
+    final List<String> failedEmailIds;
+    // how many of them failed because of Gmail's rate limits
+    final int numberOfThrottledEmails;
+    final long payloadBytes;
+    // how long the requests were in flight, without the time spent waiting for quota or a free slot
+    final long requestMillis;
+
+    BatchResult(List<String> failedEmailIds, int numberOfThrottledEmails, long payloadBytes, long requestMillis) {
+      this.failedEmailIds = failedEmailIds;
+      this.numberOfThrottledEmails = numberOfThrottledEmails;
+      this.payloadBytes = payloadBytes;
+      this.requestMillis = requestMillis;
+    }
+  }
+
+  interface Sleeper {
+    void sleep(long millis) throws InterruptedException;
   }
 
   public static class Result {
-    public final int currentBatchNumber;
+    public final int numberOfProcessedEmails;
+    // So far, if the listing isn't complete yet.
+    public final int numberOfEmails;
+    public final boolean listingComplete;
+
+    Result(int numberOfProcessedEmails, int numberOfEmails, boolean listingComplete) {
+      this.numberOfProcessedEmails = numberOfProcessedEmails;
+      this.numberOfEmails = numberOfEmails;
+      this.listingComplete = listingComplete;
+    }
+  }
+
+  private static class Retry {
+    private final String emailId;
+    private final long notBeforeMillis;
 
-    Result(int currentBatchNumber) {
-      this.currentBatchNumber = currentBatchNumber;
+    private Retry(String emailId, long notBeforeMillis) {
+      this.emailId = emailId;
+      this.notBeforeMillis = notBeforeMillis;
     }
   }
 
-  private final List<String> emailIds;
-  // (maximum batch size = 100)
-  // batch size = 40 ==> batch quota units = 200 ==> 1 batch / second
-  private final int batchSize = 40;
-  private final int numberOfBatches;
+  // How long to wait for the next page of IDs before checking whether any retries are due.
+  private static final long MAX_LISTING_WAIT_MILLIS = 1000;
+
+  private final AdaptiveBatchSize batchSize;
+  private final EmailIdSource emailIdSource;
+  private int numberOfEmails;
+  private final Deque<String> pendingEmailIds;
+  private final PriorityQueue<Retry> retries;
+  private final Map<String, Integer> emailIdToAttempts;
   private final Worker worker;
-  private int currentBatchNumber;
+  private final LongSupplier clock;
+  private final Sleeper sleeper;
+  private final Random random;
+  private final Cancellation cancellation;
+  private int numberOfProcessedEmails;
 
   GetEmailMetadataTask(List<String> emailIds, Worker worker) {
-    this.emailIds = emailIds;
-    numberOfBatches = (emailIds.size() + batchSize - 1) / batchSize;
+    this(emailIds, worker, System::currentTimeMillis, Thread::sleep, new Random());
+  }
+
+  GetEmailMetadataTask(EmailIdSource emailIdSource, Worker worker) {
+    this(emailIdSource, worker, System::currentTimeMillis, Thread::sleep, new Random());
+  }
+
+  GetEmailMetadataTask(List<String> emailIds, Worker worker, LongSupplier clock, Sleeper sleeper, Random random) {
+    this(NO_MORE_EMAIL_IDS, worker, clock, sleeper, random);
+    pendingEmailIds.addAll(emailIds);
+    numberOfEmails = emailIds.size();
+  }
+
+  GetEmailMetadataTask(EmailIdSource emailIdSource, Worker worker, LongSupplier clock, Sleeper sleeper,
+                       Random random) {
+    batchSize = new AdaptiveBatchSize();
+    this.emailIdSource = emailIdSource;
+    pendingEmailIds = new ArrayDeque<>();
+    retries = new PriorityQueue<>(Comparator.comparingLong(retry -> retry.notBeforeMillis));
+    emailIdToAttempts = new HashMap<>();
     this.worker = worker;
+    this.clock = clock;
+    this.sleeper = sleeper;
+    this.random = random;
+    cancellation = new Cancellation();
   }
 
+  // One step per email listed so far, while each call to takeStep() processes a batch of them.
   @Override
   public int getNumberOfSteps() {
-    return numberOfBatches;
+    return numberOfEmails;
   }
 
   @Override
   public boolean hasMoreSteps() {
-    return currentBatchNumber < numberOfBatches;
+    return !pendingEmailIds.isEmpty() || !retries.isEmpty() || !emailIdSource.isComplete();
   }
 
   @Override
   public Result takeStep() throws LongTaskException {
     try {
-      if (currentBatchNumber != 0) {
-        Thread.sleep(1000);
+      throwIfCancelled();
+      takeListedEmailIds();
+      while (pendingEmailIds.isEmpty() && !isRetryDue()) {
+        throwIfCancelled();
+        if (!emailIdSource.isComplete()) {
+          long waitMillis = retries.isEmpty() ? MAX_LISTING_WAIT_MILLIS :
+              Math.min(MAX_LISTING_WAIT_MILLIS, retries.element().notBeforeMillis - clock.getAsLong());
+          emailIdSource.awaitListed(waitMillis);
+          takeListedEmailIds();
+        } else if (!retries.isEmpty()) {
+          sleeper.sleep(retries.element().notBeforeMillis - clock.getAsLong());
+        } else {
+          // The listing ended without any further emails.
+          return getResult();
+        }
+      }
+      int size = batchSize.get();
+      List<String> batchEmailIds = new ArrayList<>(size);
+      long nowMillis = clock.getAsLong();
+      while (batchEmailIds.size() < size && !retries.isEmpty() && retries.element().notBeforeMillis <= nowMillis) {
+        batchEmailIds.add(retries.remove().emailId);
       }
-      final int startIndexInclusive = currentBatchNumber * batchSize;
-      final int endIndexExclusive = Math.min(emailIds.size(), (currentBatchNumber + 1) * batchSize);
-      worker.getEmailMetadata(startIndexInclusive, endIndexExclusive);
-      ++currentBatchNumber;
-      return new Result(currentBatchNumber);
+      while (batchEmailIds.size() < size && !pendingEmailIds.isEmpty()) {
+        batchEmailIds.add(pendingEmailIds.remove());
+      }
+      BatchResult batchResult = cancellation.call(() -> worker.getEmailMetadata(batchEmailIds));
+      List<String> failedEmailIds = batchResult.failedEmailIds;
+      batchSize.onBatchCompleted(batchEmailIds.size(), batchResult.requestMillis, batchResult.payloadBytes,
+          batchResult.numberOfThrottledEmails);
+      // Emails that failed together are retried together, so that they end up in the same batch.
+      Map<Integer, Long> attemptsToNotBeforeMillis = new HashMap<>();
+      for (String emailId : failedEmailIds) {
+        scheduleRetry(emailId, attemptsToNotBeforeMillis);
+      }
+      numberOfProcessedEmails += batchEmailIds.size() - failedEmailIds.size();
+      return getResult();
     } catch (Throwable t) {
       throw new LongTaskException(t);
     }
   }
+
+  // Stops listing further emails, e.g. when the search is stopped.
+  public void close() {
+    emailIdSource.close();
+  }
+
+  // Can be called from any thread. Aborts the requests in flight, so that the current step fails right away.
+  public void cancel() {
+    cancellation.cancel();
+    close();
+  }
+
+  private void throwIfCancelled() throws InterruptedIOException {
+    if (cancellation.isCancelled()) {
+      throw new InterruptedIOException("The search was cancelled.");
+    }
+  }
+
+  private void takeListedEmailIds() throws IOException {
+    List<String> emailIds = emailIdSource.takeListed();
+    pendingEmailIds.addAll(emailIds);
+    numberOfEmails += emailIds.size();
+  }
+
+  private boolean isRetryDue() {
+    return !retries.isEmpty() && retries.element().notBeforeMillis <= clock.getAsLong();
+  }
+
+  private Result getResult() {
+    return new Result(numberOfProcessedEmails, numberOfEmails, emailIdSource.isComplete());
+  }
+
+  private void scheduleRetry(String emailId, Map<Integer, Long> attemptsToNotBeforeMillis) throws IOException {
+    int attempts = emailIdToAttempts.merge(emailId, 1, Integer::sum);
+    if (attempts >= RetryPolicy.MAX_ATTEMPTS) {
+      throw new IOException("Failed to obtain metadata of email " + emailId + " after " + attempts + " attempts.");
+    }
+    long notBeforeMillis = attemptsToNotBeforeMillis.computeIfAbsent(attempts,
+        a -> clock.getAsLong() + RetryPolicy.getDelayMillis(a, random));
+    retries.add(new Retry(emailId, notBeforeMillis));
+  }
 }
@@ -0,0 +1,25 @@
+package app.unattach.model;
+
+// see https://developers.google.com/gmail/api/reference/quota
+enum GmailOperation {
+  GET_PROFILE(1),
+  LABELS_CREATE(5),
+  LABELS_LIST(1),
+  MESSAGES_ATTACHMENTS_GET(5),
+  MESSAGES_BATCH_DELETE(50),
+  MESSAGES_DELETE(10),
+  MESSAGES_GET(5),
+  MESSAGES_INSERT(25),
+  MESSAGES_LIST(5),
+  MESSAGES_MODIFY(5);
+
+  private final int quotaUnits;
+
+  GmailOperation(int quotaUnits) {
+    this.quotaUnits = quotaUnits;
+  }
+
+  int getQuotaUnits() {
+    return quotaUnits;
+  }
+}
@@ -2,18 +2,20 @@ package app.unattach.model;
 
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
+import com.google.api.client.googleapis.GoogleUtils;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.HttpRequestInitializer;
-import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.*;
+import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.ExponentialBackOff;
 import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.gmail.Gmail;
 import com.google.api.services.gmail.GmailScopes;
 import org.apache.commons.io.FileUtils;
 
+import javax.net.ssl.SSLSocketFactory;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -27,34 +29,111 @@ class GmailServiceLifecycleManager {
   private static final File DATA_STORE_DIR = new File(System.getProperty("user.home"), ".credentials/unattach");
   private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
   private static final List<String> SCOPES = Collections.singletonList(GmailScopes.MAIL_GOOGLE_COM);
+  private static final int DEFAULT_TIMEOUT_MILLIS = 3 * 60000;
+  // Lets callers tighten the read timeout of the requests they build on the current thread.
+  private static final ThreadLocal<Integer> READ_TIMEOUT_MILLIS = new ThreadLocal<>();
+  // Lets callers have the requests they build on the current thread retried after network and server errors. Only for
+  // requests that are safe to repeat, e.g. the chunks of a resumable upload, which then continue from what the server
+  // received.
+  private static final ThreadLocal<Boolean> RETRY_FAILED_REQUESTS = new ThreadLocal<>();
 
   private FileDataStoreFactory DATA_STORE_FACTORY;
   private HttpTransport HTTP_TRANSPORT;
+  private final TrafficCounter trafficCounter = new TrafficCounter();
+  private Credential credential;
+  private TokenRefresher tokenRefresher;
 
   GmailServiceLifecycleManager() throws GeneralSecurityException, IOException {
-    HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
+    // Like GoogleNetHttpTransport.newTrustedTransport(), but with requests that can be aborted. The connection factory
+    // chooses the socket factory of each connection.
+    NetHttpTransport.Builder transportBuilder = new NetHttpTransport.Builder()
+        .trustCertificates(GoogleUtils.getCertificateTrustStore());
+    SSLSocketFactory trustedSocketFactory = transportBuilder.getSslSocketFactory();
+    HTTP_TRANSPORT = transportBuilder
+        .setSslSocketFactory(null)
+        .setConnectionFactory(new CancellableConnectionFactory(
+            new CountingSocketFactory(trustedSocketFactory, trafficCounter)))
+        .build();
     DATA_STORE_FACTORY = new FileDataStoreFactory(DATA_STORE_DIR);
   }
 
-  private HttpRequestInitializer setHttpTimeout(final HttpRequestInitializer requestInitializer) {
+  static HttpRequestInitializer setHttpTimeout(final HttpRequestInitializer requestInitializer) {
     return httpRequest -> {
       requestInitializer.initialize(httpRequest);
-      httpRequest.setConnectTimeout(3 * 60000);
-      httpRequest.setReadTimeout(3 * 60000);
+      httpRequest.setConnectTimeout(DEFAULT_TIMEOUT_MILLIS);
+      Integer readTimeoutMillis = READ_TIMEOUT_MILLIS.get();
+      httpRequest.setReadTimeout(readTimeoutMillis == null ? DEFAULT_TIMEOUT_MILLIS : readTimeoutMillis);
+      if (Boolean.TRUE.equals(RETRY_FAILED_REQUESTS.get())) {
+        retryFailedRequest(httpRequest);
+      }
     };
   }
 
+  private static void retryFailedRequest(HttpRequest httpRequest) {
+    httpRequest.setIOExceptionHandler(new HttpBackOffIOExceptionHandler(new ExponentialBackOff()));
+    // The credential refreshes the token on 401 responses.
+    HttpUnsuccessfulResponseHandler credentialHandler = httpRequest.getUnsuccessfulResponseHandler();
+    HttpUnsuccessfulResponseHandler serverErrorHandler =
+        new HttpBackOffUnsuccessfulResponseHandler(new ExponentialBackOff());
+    httpRequest.setUnsuccessfulResponseHandler((request, response, supportsRetry) ->
+        credentialHandler != null && credentialHandler.handleResponse(request, response, supportsRetry) ||
+            serverErrorHandler.handleResponse(request, response, supportsRetry));
+  }
+
+  static void setRetryFailedRequestsForCurrentThread() {
+    RETRY_FAILED_REQUESTS.set(true);
+  }
+
+  static void clearRetryFailedRequestsForCurrentThread() {
+    RETRY_FAILED_REQUESTS.remove();
+  }
+
+  static void setReadTimeoutForCurrentThread(int readTimeoutMillis) {
+    READ_TIMEOUT_MILLIS.set(readTimeoutMillis);
+  }
+
+  static void clearReadTimeoutForCurrentThread() {
+    READ_TIMEOUT_MILLIS.remove();
+  }
+
   Gmail signIn() throws IOException {
-    Credential credential = authorize();
-    return new Gmail.Builder(HTTP_TRANSPORT, JSON_FACTORY, setHttpTimeout(credential))
+    credential = authorize();
+    stopTokenRefresher();
+    tokenRefresher = new TokenRefresher(credential, TokenRefresher.DEFAULT_REFRESH_AHEAD);
+    tokenRefresher.start();
+    return buildService(HTTP_TRANSPORT, setHttpTimeout(credential));
+  }
+
+  // The client asks for compressed responses (with both the Accept-Encoding header and "gzip" in the user agent, as
+  // Google requires), and compresses request bodies other than resumable upload chunks, whose byte ranges must refer
+  // to the uncompressed content.
+  static Gmail buildService(HttpTransport httpTransport, HttpRequestInitializer requestInitializer) {
+    return new Gmail.Builder(httpTransport, JSON_FACTORY, requestInitializer)
         .setApplicationName(GOOGLE_APPLICATION_NAME)
         .build();
   }
 
+  Credential getCredential() {
+    return credential;
+  }
+
+  TrafficCounter getTrafficCounter() {
+    return trafficCounter;
+  }
+
   void signOut() throws IOException {
+    stopTokenRefresher();
+    credential = null;
     FileUtils.deleteDirectory(DATA_STORE_DIR);
   }
 
+  private void stopTokenRefresher() {
+    if (tokenRefresher != null) {
+      tokenRefresher.close();
+      tokenRefresher = null;
+    }
+  }
+
   private Credential authorize() throws IOException {
     InputStream in = getClass().getResourceAsStream("/credentials.json");
     GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(JSON_FACTORY, new InputStreamReader(in));
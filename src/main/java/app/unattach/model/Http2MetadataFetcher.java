@@ -0,0 +1,261 @@
+package app.unattach.model;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonErrorContainer;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.gmail.model.Message;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+// Obtains email metadata with individual messages.get requests, sent concurrently and multiplexed over one HTTP/2
+// connection, instead of a multipart batch request. Each email fails or succeeds on its own, and responses are
+// processed as they arrive rather than after the whole batch. Unlike the Gmail client, java.net.http neither asks for
+// compressed responses nor decompresses them, so that is done here.
+class Http2MetadataFetcher implements GetEmailMetadataTask.Worker, AutoCloseable {
+  private static final Logger LOGGER = Logger.getLogger(Http2MetadataFetcher.class.getName());
+  static final URI GMAIL_MESSAGES_URI = URI.create("https://gmail.googleapis.com/gmail/v1/users/me/messages/");
+  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+  private static final Duration REQUEST_TIMEOUT = Duration.ofMinutes(1);
+  // Google only compresses responses for user agents that contain "gzip".
+  private static final String USER_AGENT = Constants.PRODUCT_NAME + " (gzip)";
+
+  // From the first request of a batch that was sent to the last response that was received.
+  private static class RequestSpan {
+    private long firstSentNanos = Long.MAX_VALUE;
+    private long lastReceivedNanos = Long.MIN_VALUE;
+
+    synchronized void add(long sentNanos, long receivedNanos) {
+      firstSentNanos = Math.min(firstSentNanos, sentNanos);
+      lastReceivedNanos = Math.max(lastReceivedNanos, receivedNanos);
+    }
+
+    synchronized long getMillis() {
+      return firstSentNanos > lastReceivedNanos ? 0 : TimeUnit.NANOSECONDS.toMillis(lastReceivedNanos - firstSentNanos);
+    }
+  }
+
+  private final URI messagesUri;
+  private final String fields;
+  private final Credential credential;
+  // Only the first of the requests that were refused the same token refreshes it.
+  private final Object refreshLock = new Object();
+  private final QuotaScheduler quotaScheduler;
+  private final ConcurrencyLimiter concurrencyLimiter;
+  private final TrafficCounter trafficCounter;
+  private final Consumer<Message> messageConsumer;
+  private final java.net.http.HttpClient client;
+  // The concurrency limiter decides how many of these actually have a request in flight.
+  private final ExecutorService executor;
+
+  Http2MetadataFetcher(URI messagesUri, String fields, Credential credential, QuotaScheduler quotaScheduler,
+                       ConcurrencyLimiter concurrencyLimiter, TrafficCounter trafficCounter,
+                       Consumer<Message> messageConsumer) {
+    this.messagesUri = messagesUri;
+    this.fields = fields;
+    this.credential = credential;
+    this.quotaScheduler = quotaScheduler;
+    this.concurrencyLimiter = concurrencyLimiter;
+    this.trafficCounter = trafficCounter;
+    this.messageConsumer = messageConsumer;
+    executor = Executors.newFixedThreadPool(ConcurrencyLimiter.MAX_LIMIT, runnable -> {
+      Thread thread = new Thread(runnable, "metadata-fetch");
+      thread.setDaemon(true);
+      return thread;
+    });
+    client = java.net.http.HttpClient.newBuilder()
+        .version(java.net.http.HttpClient.Version.HTTP_2)
+        .connectTimeout(REQUEST_TIMEOUT)
+        .build();
+  }
+
+  @Override
+  public GetEmailMetadataTask.BatchResult getEmailMetadata(List<String> emailIds) throws IOException {
+    quotaScheduler.acquire(GmailOperation.MESSAGES_GET, emailIds.size(), QuotaScheduler.Priority.BULK);
+    List<Future<Message>> futures = new ArrayList<>(emailIds.size());
+    RequestSpan requestSpan = new RequestSpan();
+    for (String emailId : emailIds) {
+      futures.add(executor.submit(() ->
+          concurrencyLimiter.execute("messages.get(metadata)", () -> get(emailId, requestSpan))));
+    }
+    // Stopping the search abandons the requests in flight.
+    Runnable cancelRequests = () -> futures.forEach(future -> future.cancel(true));
+    Cancellation cancellation = Cancellation.current();
+    if (cancellation != null) {
+      cancellation.onCancel(cancelRequests);
+    }
+    List<String> failedEmailIds = new ArrayList<>();
+    int numberOfThrottledEmails = 0;
+    long payloadBytes = 0;
+    try {
+      for (int i = 0; i < emailIds.size(); ++i) {
+        String emailId = emailIds.get(i);
+        try {
+          Message message = futures.get(i).get();
+          payloadBytes += LiveModel.getHeadersSize(message);
+          messageConsumer.accept(message);
+        } catch (ExecutionException e) {
+          IOException failure = LiveModel.toIOException(e.getCause());
+          if (!isRetryable(failure)) {
+            throw failure;
+          }
+          LOGGER.info("Obtaining metadata of email " + emailId + " failed (" + failure.getMessage() +
+              "). Will retry later.");
+          failedEmailIds.add(emailId);
+          if (isThrottled(failure)) {
+            ++numberOfThrottledEmails;
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while obtaining email metadata.");
+    } catch (CancellationException e) {
+      throw new InterruptedIOException("Obtaining email metadata was cancelled.");
+    } finally {
+      if (cancellation != null) {
+        cancellation.removeOnCancel(cancelRequests);
+      }
+      cancelRequests.run();
+    }
+    return new GetEmailMetadataTask.BatchResult(failedEmailIds, numberOfThrottledEmails, payloadBytes,
+        requestSpan.getMillis());
+  }
+
+  private Message get(String emailId, RequestSpan requestSpan) throws IOException {
+    String accessToken = getAccessToken();
+    HttpResponse<byte[]> response = send(emailId, accessToken, requestSpan);
+    if (response.statusCode() == 401) {
+      // The token was revoked or expired early.
+      String newAccessToken = refreshAccessToken(accessToken);
+      if (newAccessToken != null) {
+        response = send(emailId, newAccessToken, requestSpan);
+      }
+    }
+    String body = getBody(response);
+    if (response.statusCode() == 200) {
+      return JSON_FACTORY.fromString(body, Message.class);
+    }
+    throw toException(response.statusCode(), body);
+  }
+
+  private HttpResponse<byte[]> send(String emailId, String accessToken, RequestSpan requestSpan) throws IOException {
+    HttpRequest request = HttpRequest.newBuilder()
+        .uri(messagesUri.resolve(URLEncoder.encode(emailId, StandardCharsets.UTF_8) + "?fields=" +
+            URLEncoder.encode(fields, StandardCharsets.UTF_8)))
+        .timeout(REQUEST_TIMEOUT)
+        .header("Authorization", "Bearer " + accessToken)
+        .header("Accept-Encoding", "gzip")
+        .header("User-Agent", USER_AGENT)
+        .GET()
+        .build();
+    HttpResponse<byte[]> response;
+    long sentNanos = System.nanoTime();
+    try {
+      response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+      requestSpan.add(sentNanos, System.nanoTime());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while obtaining metadata of email " + emailId + ".");
+    }
+    trafficCounter.onNetworkBytesReceived(response.body().length);
+    return response;
+  }
+
+  // Returns the token to retry with, or null if there is no new one. Requests that were refused a token that was
+  // already replaced use the new one rather than refreshing it again.
+  private String refreshAccessToken(String refusedAccessToken) throws IOException {
+    synchronized (refreshLock) {
+      if (refusedAccessToken.equals(credential.getAccessToken())) {
+        credential.refreshToken();
+      }
+      String accessToken = credential.getAccessToken();
+      return accessToken == null || accessToken.equals(refusedAccessToken) ? null : accessToken;
+    }
+  }
+
+  private static String getBody(HttpResponse<byte[]> response) throws IOException {
+    InputStream body = new ByteArrayInputStream(response.body());
+    if (response.headers().firstValue("Content-Encoding").filter("gzip"::equalsIgnoreCase).isPresent()) {
+      body = new GZIPInputStream(body);
+    }
+    return IOUtils.toString(body, StandardCharsets.UTF_8);
+  }
+
+  private String getAccessToken() throws IOException {
+    String accessToken = credential.getAccessToken();
+    if (accessToken == null && credential.refreshToken()) {
+      accessToken = credential.getAccessToken();
+    }
+    if (accessToken == null) {
+      throw new IOException("No access token available.");
+    }
+    return accessToken;
+  }
+
+  private static GoogleJsonResponseException toException(int statusCode, String body) {
+    GoogleJsonError details = null;
+    try {
+      details = JSON_FACTORY.fromString(body, GoogleJsonErrorContainer.class).getError();
+    } catch (IOException | IllegalArgumentException e) {
+      // not a JSON error response
+    }
+    if (details == null) {
+      details = new GoogleJsonError();
+      details.setCode(statusCode);
+    }
+    HttpResponseException.Builder builder =
+        new HttpResponseException.Builder(statusCode, null, new HttpHeaders()).setContent(body);
+    if (details.getMessage() != null) {
+      builder.setMessage(statusCode + " " + details.getMessage());
+    }
+    return new GoogleJsonResponseException(builder, details);
+  }
+
+  private static boolean isThrottled(IOException e) {
+    if (e instanceof GoogleJsonResponseException) {
+      GoogleJsonResponseException responseException = (GoogleJsonResponseException) e;
+      return RetryPolicy.isThrottled(responseException.getDetails());
+    }
+    return false;
+  }
+
+  private static boolean isRetryable(IOException e) {
+    if (e instanceof GoogleJsonResponseException) {
+      GoogleJsonResponseException responseException = (GoogleJsonResponseException) e;
+      return responseException.getStatusCode() == 401 || RetryPolicy.isRetryable(responseException.getDetails());
+    }
+    // e.g. a reset stream or a timeout, which only affects this one request
+    return !(e instanceof InterruptedIOException);
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+}
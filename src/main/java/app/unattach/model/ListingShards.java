@@ -0,0 +1,95 @@
+package app.unattach.model;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+// Splits a search into date windows that can be listed concurrently. Windows are halved, largest first, until each is
+// expected to match at most SHARD_SIZE emails, based on the result size estimates that Gmail returns.
+class ListingShards {
+  private static final Logger LOGGER = Logger.getLogger(ListingShards.class.getName());
+  static final long SHARD_SIZE = 5000;
+  static final int MAX_SHARDS = 32;
+  // Gmail launched in April 2004. The oldest window has no lower bound anyway, since imported emails can be older.
+  private static final long EARLIEST_SECONDS = 1080777600;
+  private static final long MIN_WINDOW_SECONDS = 24 * 60 * 60;
+
+  interface Estimator {
+    long getResultSizeEstimate(String query) throws IOException;
+  }
+
+  private static class Window {
+    private final long startSeconds;
+    private final long endSeconds;
+    private final long estimate;
+
+    private Window(long startSeconds, long endSeconds, long estimate) {
+      this.startSeconds = startSeconds;
+      this.endSeconds = endSeconds;
+      this.estimate = estimate;
+    }
+  }
+
+  private final String query;
+  private final Estimator estimator;
+  private final long latestSeconds;
+
+  private ListingShards(String query, Estimator estimator, long nowSeconds) {
+    this.query = query;
+    this.estimator = estimator;
+    // The newest window has no upper bound, since emails can have dates in the future.
+    latestSeconds = nowSeconds + MIN_WINDOW_SECONDS;
+  }
+
+  static List<String> split(String query, Estimator estimator, long nowSeconds) throws IOException {
+    return new ListingShards(query, estimator, nowSeconds).split();
+  }
+
+  private List<String> split() throws IOException {
+    long estimate = estimator.getResultSizeEstimate(query);
+    if (estimate <= SHARD_SIZE) {
+      return Collections.singletonList(query);
+    }
+    PriorityQueue<Window> toSplit = new PriorityQueue<>(Comparator.comparingLong(window -> -window.estimate));
+    toSplit.add(new Window(EARLIEST_SECONDS, latestSeconds, estimate));
+    List<Window> shards = new ArrayList<>();
+    while (!toSplit.isEmpty() && toSplit.size() + shards.size() < MAX_SHARDS) {
+      Window window = toSplit.remove();
+      if (window.estimate <= SHARD_SIZE || window.endSeconds - window.startSeconds <= MIN_WINDOW_SECONDS) {
+        shards.add(window);
+        continue;
+      }
+      long middleSeconds = window.startSeconds + (window.endSeconds - window.startSeconds) / 2;
+      toSplit.add(estimate(window.startSeconds, middleSeconds));
+      toSplit.add(estimate(middleSeconds, window.endSeconds));
+    }
+    shards.addAll(toSplit);
+    // Newest first, like Gmail lists emails.
+    shards.sort(Comparator.comparingLong(window -> -window.startSeconds));
+    LOGGER.info("Listing " + estimate + " emails (estimated) in " + shards.size() + " date windows.");
+    return shards.stream().map(window -> getWindowQuery(window.startSeconds, window.endSeconds))
+        .collect(Collectors.toList());
+  }
+
+  private Window estimate(long startSeconds, long endSeconds) throws IOException {
+    long estimate = estimator.getResultSizeEstimate(getWindowQuery(startSeconds, endSeconds));
+    return new Window(startSeconds, endSeconds, estimate);
+  }
+
+  // Adjacent windows overlap by a second, so that no email falls between them regardless of whether Gmail treats the
+  // bounds as inclusive. The resulting duplicates are removed when merging the shards.
+  private String getWindowQuery(long startSeconds, long endSeconds) {
+    List<String> terms = new ArrayList<>(3);
+    if (!query.isBlank()) {
+      terms.add("(" + query + ")");
+    }
+    if (startSeconds > EARLIEST_SECONDS) {
+      terms.add("after:" + (startSeconds - 1));
+    }
+    if (endSeconds < latestSeconds) {
+      terms.add("before:" + (endSeconds + 1));
+    }
+    return String.join(" ", terms);
+  }
+}
@@ -1,39 +1,106 @@
 package app.unattach.model;
 
-import app.unattach.controller.LongTask;
 import com.google.api.client.googleapis.batch.BatchRequest;
 import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
 import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.http.FileContent;
 import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.services.gmail.Gmail;
-import com.google.api.services.gmail.model.*;
+import com.google.api.services.gmail.model.BatchDeleteMessagesRequest;
+import com.google.api.services.gmail.model.Label;
+import com.google.api.services.gmail.model.LabelColor;
+import com.google.api.services.gmail.model.ListLabelsResponse;
+import com.google.api.services.gmail.model.ListMessagesResponse;
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePartHeader;
+import com.google.api.services.gmail.model.Profile;
 import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
 
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedFileInputStream;
 import java.io.*;
-import java.lang.Thread;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
 import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
-import static org.apache.commons.codec.binary.Base64.*;
-
 public class LiveModel implements Model {
   private static final Logger LOGGER = Logger.getLogger(LiveModel.class.getName());
   private static final String USER = "me";
+  private static final String METADATA_FIELDS = "id,labelIds,internalDate,payload/headers,sizeEstimate";
+  // "batch" (default) or "http2"
+  static final String METADATA_ENGINE_PROPERTY = "unattach.metadataEngine";
+  // If "true", searches matching many emails are listed in concurrent date windows.
+  static final String SHARDED_LISTING_PROPERTY = "unattach.shardedListing";
+  // Added to slim copies, so that one inserted just before a crash can be told apart from other emails with the same
+  // Message-ID.
+  private static final String ORIGINAL_ID_HEADER = "X-Unattach-Original-Id";
+  // The downloaded email is mostly read in long runs, when it's copied or its boundaries are scanned.
+  private static final int RAW_STREAM_BUFFER_SIZE = 64 * 1024;
+  // How often a download that waits for quota or a free slot is checked on.
+  private static final long UNSENT_POLL_MILLIS = 100;
+  // Field masks can't recurse, so the parts are listed down to a depth that real emails don't exceed.
+  private static final int MAX_STRUCTURE_DEPTH = 16;
+  // everything but the content of the parts
+  private static final String STRUCTURE_FIELDS = "id,threadId,labelIds,sizeEstimate,payload(" +
+      getPartFields(MAX_STRUCTURE_DEPTH) + ")";
+  // the most IDs that messages.batchDelete accepts
+  private static final int MAX_BATCH_DELETE_SIZE = 1000;
+  private static final long BATCH_DELETE_DELAY_MILLIS = 2000;
+  // Slim copies up to this size are uploaded in one request, larger ones in resumable chunks of this size.
+  static final int UPLOAD_CHUNK_SIZE = 8 * MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+  // Both the downloaded email and its slim copy are kept on disk, so what processing an email holds in memory is mostly
+  // the text parts that are changed.
+  private static final int HEAP_BYTES_PER_EMAIL_BYTE = 2;
 
   private final Config config;
+  private final ExecutorService downloadExecutor;
+  private final DownloadDeadlines downloadDeadlines;
+  // shared by all pipelines, so that memory is bounded however many run
+  private final MemoryBudget memoryBudget;
   private GmailServiceLifecycleManager serviceLifecycleManager;
   private Gmail service;
+  private QuotaScheduler quotaScheduler;
+  private SharedTokenBucket sharedTokenBucket;
+  private ConcurrencyLimiter concurrencyLimiter;
+  private QuotaLedger quotaLedger;
+  private ProcessingJournal processingJournal;
+  private Http2MetadataFetcher http2MetadataFetcher;
   private List<Email> emails;
+  private EmailFeed emailFeed;
   private String emailAddress;
 
+  private static class RawDownload {
+    final Message message;
+    final File file;
+
+    RawDownload(Message message, File file) {
+      this.message = message;
+      this.file = file;
+    }
+  }
+
   public LiveModel() {
     this.config = new FileConfig();
+    downloadExecutor = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "raw-message-download");
+      thread.setDaemon(true);
+      return thread;
+    });
+    downloadDeadlines = new DownloadDeadlines();
+    memoryBudget = MemoryBudget.fromSystemProperties(HEAP_BYTES_PER_EMAIL_BYTE);
     configureMimeLibrary();
     reset();
   }
@@ -65,8 +132,26 @@ public class LiveModel implements Model {
   }
 
   private void reset() {
+    if (quotaLedger != null) {
+      quotaLedger.flush();
+    }
+    if (processingJournal != null) {
+      processingJournal.close();
+      processingJournal = null;
+    }
+    closeSharedTokenBucket();
+    if (serviceLifecycleManager != null) {
+      logTraffic();
+    }
+    if (http2MetadataFetcher != null) {
+      http2MetadataFetcher.close();
+      http2MetadataFetcher = null;
+    }
     serviceLifecycleManager = null;
     service = null;
+    quotaScheduler = null;
+    concurrencyLimiter = null;
+    quotaLedger = null;
     emailAddress = null;
     clearPreviousSearch();
   }
@@ -74,6 +159,7 @@ public class LiveModel implements Model {
   @Override
   public void clearPreviousSearch() {
     emails = new ArrayList<>();
+    emailFeed = new EmailFeed();
   }
 
   @Override
@@ -117,13 +203,46 @@ public class LiveModel implements Model {
       signOut();
       configureService();
     }
+    String emailAddress = getEmailAddress();
+    useSharedQuota(emailAddress);
+    quotaLedger = new QuotaLedger(emailAddress);
+    processingJournal = new ProcessingJournal(emailAddress);
   }
 
   private void configureService() throws GeneralSecurityException, IOException {
     serviceLifecycleManager = new GmailServiceLifecycleManager();
-    // 250 quota units / user / second
-    // each set of requests should assume they start with clean quota
     service = serviceLifecycleManager.signIn();
+    quotaScheduler = new QuotaScheduler(this::recordQuotaUnits);
+    concurrencyLimiter = new ConcurrencyLimiter();
+  }
+
+  // Other instances signed into the same account on this machine draw from the same quota.
+  private void useSharedQuota(String emailAddress) {
+    closeSharedTokenBucket();
+    try {
+      sharedTokenBucket = new SharedTokenBucket(emailAddress);
+      quotaScheduler = new QuotaScheduler(sharedTokenBucket, this::recordQuotaUnits);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to set up the quota shared with other instances. Using local quota only.", e);
+    }
+  }
+
+  private void closeSharedTokenBucket() {
+    if (sharedTokenBucket == null) {
+      return;
+    }
+    try {
+      sharedTokenBucket.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to close the shared quota file.", e);
+    }
+    sharedTokenBucket = null;
+  }
+
+  private void recordQuotaUnits(long units) {
+    if (quotaLedger != null) {
+      quotaLedger.recordQuotaUnits(units);
+    }
   }
 
   @Override
@@ -151,7 +270,7 @@ public class LiveModel implements Model {
   @Override
   public String getEmailAddress() throws IOException {
     if (emailAddress == null) {
-      // unknown quota units
+      quotaScheduler.acquire(GmailOperation.GET_PROFILE, QuotaScheduler.Priority.INTERACTIVE);
       Profile profile = service.users().getProfile(USER).setFields("emailAddress").execute();
       emailAddress = profile.getEmailAddress();
     }
@@ -163,14 +282,61 @@ public class LiveModel implements Model {
     return emails;
   }
 
+  @Override
+  public EmailFeed getEmailFeed() {
+    return emailFeed;
+  }
+
+  private void addEmail(Email email) {
+    emails.add(email);
+    emailFeed.publish(email);
+  }
+
   @Override
   public String getFilenameSchema() {
     return config.getFilenameSchema();
   }
 
   @Override
-  public LongTask<ProcessEmailResult> getProcessTask(Email email, ProcessSettings processSettings) {
-    return new ProcessEmailTask(email, e -> processEmail(e, processSettings) /* 40 quota units */);
+  public ProcessingPipeline getProcessingPipeline(ProcessSettings processSettings,
+                                                  ProcessingPipeline.Listener listener) {
+    int processors = Runtime.getRuntime().availableProcessors();
+    // The network stages are additionally limited by the quota scheduler and the concurrency limiter. The stages
+    // before the upload don't change the mailbox, so they can be aborted and run again.
+    List<ProcessingPipeline.Stage> stages = List.of(
+        new ProcessingPipeline.Stage("fetch", 8, 2, this::fetchEmail, true),
+        new ProcessingPipeline.Stage("parse", processors, 2, this::parseEmail, true),
+        new ProcessingPipeline.Stage("write", 2, 2, this::writeEmail, true),
+        new ProcessingPipeline.Stage("encode", processors, 2, this::encodeEmail, true),
+        new ProcessingPipeline.Stage("upload", 4, 2, this::uploadEmail),
+        ProcessingPipeline.Stage.batched("delete", MAX_BATCH_DELETE_SIZE, BATCH_DELETE_DELAY_MILLIS, this::deleteEmails)
+    );
+    return new ProcessingPipeline(processSettings, stages, memoryBudget, listener);
+  }
+
+  @Override
+  public List<List<Email>> getProcessingPlan(List<Email> emails, ProcessOption processOption,
+                                             boolean mostSpaceFirst) {
+    QuotaLedger.Usage todaysUsage = quotaLedger.getTodaysUsage();
+    List<List<Email>> days = mostSpaceFirst ?
+        ProcessingPlanner.splitIntoDaysBySpaceFreed(emails, processOption, todaysUsage) :
+        ProcessingPlanner.splitIntoDays(emails, processOption, todaysUsage);
+    logTraffic();
+    if (days.size() > 1) {
+      LOGGER.info(String.format("Processing of %d emails will take %d days due to the daily Gmail limits " +
+              "(used today: %dMB downloaded, %dMB uploaded).", emails.size(), days.size(),
+          todaysUsage.bytesDown / Constants.BYTES_IN_MEGABYTE, todaysUsage.bytesUp / Constants.BYTES_IN_MEGABYTE));
+    }
+    return days;
+  }
+
+  private void logTraffic() {
+    LOGGER.info("Gmail traffic since signing in: " + serviceLifecycleManager.getTrafficCounter().getStatistics() + ".");
+  }
+
+  @Override
+  public long getMillisUntilQuotaReset() {
+    return quotaLedger.getMillisUntilReset();
   }
 
   @Override
@@ -178,130 +344,606 @@ public class LiveModel implements Model {
     return config.getRemovedLabelId();
   }
 
-  private ProcessEmailResult processEmail(Email email, ProcessSettings processSettings)
-      throws IOException, MessagingException {
-    Message message = getRawMessage(email.getGmailId()); // 5 quota units
-    MimeMessage mimeMessage = getMimeMessage(message);
+  private void fetchEmail(EmailJob job) throws IOException, MessagingException {
+    resumeFromJournal(job);
+    if (job.inserted) {
+      return;
+    }
+    processingJournal.record(job.email.getGmailId(), ProcessingJournal.Phase.STARTED, null);
+    job.deleteRawFile();
+    ProcessOption processOption = job.processSettings.processOption;
+    if (!processOption.shouldRemove() && !processOption.shouldBackup() && fetchAttachments(job)) {
+      return;
+    }
+    RawDownload download = getRawMessage(job.email); // 5 quota units, or 10 if hedged
+    job.message = download.message;
+    job.rawFile = download.file;
+  }
+
+  // When the email is neither changed nor backed up, only its structure and its attachments are fetched, rather than
+  // the bodies and the inline parts too. Returns false if the content of an attachment is part of the structure, in
+  // which case the raw email is needed after all.
+  private boolean fetchAttachments(EmailJob job) throws IOException, MessagingException {
+    Message message = getMessageStructure(job.email.getGmailId()); // 5 quota units
+    List<FetchedBodyPart> bodyParts = FetchedBodyPart.getBodyParts(message.getPayload());
+    List<FetchedBodyPart> attachments = new ArrayList<>();
+    if (job.processSettings.processOption.shouldDownload()) {
+      for (FetchedBodyPart bodyPart : bodyParts) {
+        if (EmailProcessor.isAttachment(bodyPart)) {
+          if (bodyPart.attachmentId == null) {
+            LOGGER.info("An attachment of " + job.email + " has no ID, so downloading the whole email instead.");
+            return false;
+          }
+          attachments.add(bodyPart);
+        }
+      }
+    }
+    job.message = message;
+    job.fetchedBodyParts = bodyParts;
+    // The pipeline already fetches several emails at a time, so the attachments of one are fetched in turn.
+    for (FetchedBodyPart attachment : attachments) {
+      attachment.contentFile = downloadAttachment(job.email.getGmailId(), attachment); // 5 quota units
+    }
+    return true;
+  }
+
+  private void resumeFromJournal(EmailJob job) {
+    ProcessingJournal.Entry entry = processingJournal.get(job.email.getGmailId());
+    if (entry == null) {
+      return;
+    }
+    switch (entry.phase) {
+      case STARTED:
+        job.resumed = true;
+        break;
+      case INSERTED:
+        if (job.processSettings.processOption.shouldRemove()) {
+          // The attachments were saved before the slim copy was inserted, so only the original is left to remove,
+          // which the upload stage does, as it can't be cancelled.
+          LOGGER.info("Resuming " + job.email + ", whose slim copy was already inserted.");
+          job.inserted = true;
+        }
+        break;
+      default:
+        // An email that was processed before is processed again like any other, e.g. with different settings.
+        break;
+    }
+  }
+
+  // The parts of the message are read from the downloaded file when needed, rather than copied into memory. Emails are
+  // spliced where possible, and parsed by javax.mail otherwise, e.g. when a boundary is missing.
+  private void parseEmail(EmailJob job) throws IOException, MessagingException {
+    if (job.inserted || job.fetchedBodyParts != null) {
+      return;
+    }
+    if (job.rawStream != null) {
+      job.rawStream.close();
+    }
+    job.rawStream = new SharedFileInputStream(job.rawFile, RAW_STREAM_BUFFER_SIZE);
+    job.splicedMessage = null;
+    job.mimeMessage = null;
+    try {
+      job.splicedMessage = SplicedMessage.scan(job.rawStream, job.rawFile.length());
+    } catch (MessagingException e) {
+      LOGGER.info("Unable to splice " + job.email + ", so parsing it instead: " + e.getMessage());
+      job.mimeMessage = new MimeMessage(Session.getInstance(new Properties()), job.rawStream);
+    }
+  }
+
+  private void writeEmail(EmailJob job) throws IOException, MessagingException {
+    if (job.inserted) {
+      return;
+    }
+    ProcessSettings processSettings = job.processSettings;
     if (processSettings.processOption.shouldBackup()) {
-      String filename = email.getGmailId() + ".eml";
-      mimeMessage.writeTo(new FileOutputStream(new File(processSettings.targetDirectory, filename)));
+      String filename = job.email.getGmailId() + ".eml";
+      File file = new File(processSettings.targetDirectory, filename);
+      try (OutputStream outputStream = new CancellableOutputStream(new FileOutputStream(file))) {
+        Files.copy(job.rawFile.toPath(), outputStream);
+      } catch (IOException e) {
+        Files.deleteIfExists(file.toPath());
+        throw e;
+      }
+    }
+    if (job.fetchedBodyParts != null) {
+      job.fileNames = EmailProcessor.process(job.email, job.fetchedBodyParts, processSettings);
+    } else if (job.splicedMessage != null) {
+      job.fileNames = EmailProcessor.process(job.email, job.splicedMessage, processSettings);
+    } else {
+      job.fileNames = EmailProcessor.process(job.email, job.mimeMessage, processSettings);
+    }
+  }
+
+  private void encodeEmail(EmailJob job) throws IOException, MessagingException {
+    if (job.shouldReplace()) {
+      job.deleteSlimFile();
+      job.slimFile = writeSlimMessage(job);
+    }
+    job.splicedMessage = null;
+    job.mimeMessage = null;
+    job.deleteRawFile();
+  }
+
+  private void uploadEmail(EmailJob job) throws IOException {
+    if (job.inserted) {
+      try {
+        removeOriginalMessage(job.email.getGmailId()); // 10 quota units
+      } catch (HttpResponseException e) {
+        if (e.getStatusCode() != 404) {
+          throw e;
+        }
+      }
+      processingJournal.record(job.email.getGmailId(), ProcessingJournal.Phase.DONE, null);
+      job.finished = true;
+      return;
     }
-    Set<String> fileNames = EmailProcessor.process(email, mimeMessage, processSettings);
-    if (processSettings.processOption.shouldRemove() && !fileNames.isEmpty()) {
-      updateRawMessage(message, mimeMessage);
-      Message newMessage = insertSlimMessage(message); // 25 quota units
-      addLabel(newMessage.getId(), processSettings.processOption.getLabelId());
-      removeOriginalMessage(message.getId()); // 10 quota units
+    if (job.shouldReplace()) {
+      String emailId = job.email.getGmailId();
+      if (job.resumed) {
+        job.newMessageId = findSlimCopy(job.email, job.processSettings.processOption.getLabelId());
+      }
+      if (job.newMessageId == null) {
+        // After a crash during the insert, the journal must show that the slim copy may exist.
+        processingJournal.sync();
+        Message newMessage =
+            insertSlimMessage(job.message, job.slimFile, job.processSettings.processOption.getLabelId());
+        job.newMessageId = newMessage.getId();
+      } else {
+        LOGGER.info("Found the slim copy of " + job.email + ", which was inserted before a restart.");
+      }
+      job.deleteSlimFile();
+      processingJournal.record(emailId, ProcessingJournal.Phase.INSERTED, job.newMessageId);
     }
-    return new ProcessEmailResult(fileNames);
   }
 
-  private Message getRawMessage(String emailId) throws IOException {
-    // 1 messages.get == 5 quota units
+  // Gmail can't search for the header that the slim copy refers to the original with, so the candidates are the
+  // emails with the label of the copy dated around the original (5 quota units per page), whose headers are then
+  // checked (5 quota units each). The copy takes its date from the Date header, which is close to the date at which
+  // the original was received.
+  private String findSlimCopy(Email email, String labelId) throws IOException {
+    String pageToken = null;
+    do {
+      quotaScheduler.acquire(GmailOperation.MESSAGES_LIST, QuotaScheduler.Priority.BULK);
+      Gmail.Users.Messages.List listRequest = service.users().messages().list(USER)
+          .setFields("messages/id,nextPageToken").setQ(getSlimCopyQuery(email)).setPageToken(pageToken);
+      if (labelId != null) {
+        listRequest.setLabelIds(Collections.singletonList(labelId));
+      }
+      ListMessagesResponse response = concurrencyLimiter.execute("messages.list", listRequest::execute);
+      if (response.getMessages() != null) {
+        for (Message candidate : response.getMessages()) {
+          if (candidate.getId().equals(email.getGmailId())) {
+            continue;
+          }
+          quotaScheduler.acquire(GmailOperation.MESSAGES_GET, QuotaScheduler.Priority.BULK);
+          Gmail.Users.Messages.Get getRequest = service.users().messages().get(USER, candidate.getId())
+              .setFormat("metadata").setMetadataHeaders(Collections.singletonList(ORIGINAL_ID_HEADER))
+              .setFields("payload/headers");
+          Message message = concurrencyLimiter.execute("messages.get(metadata)", getRequest::execute);
+          if (message.getPayload() != null && message.getPayload().getHeaders() != null &&
+              email.getGmailId().equals(getHeaderMap(message).get(ORIGINAL_ID_HEADER.toLowerCase()))) {
+            return candidate.getId();
+          }
+        }
+      }
+      pageToken = response.getNextPageToken();
+    } while (pageToken != null);
+    return null;
+  }
+
+  static String getSlimCopyQuery(Email email) {
+    long seconds = TimeUnit.MILLISECONDS.toSeconds(email.getTimestamp());
+    long window = TimeUnit.DAYS.toSeconds(1);
+    return "after:" + (seconds - window) + " before:" + (seconds + window);
+  }
+
+  // The originals are only removed once their slim copies were inserted.
+  private void deleteEmails(List<EmailJob> jobs) throws IOException {
+    List<String> emailIds = jobs.stream().filter(EmailJob::shouldReplace).map(job -> job.message.getId())
+        .collect(Collectors.toList());
+    if (!emailIds.isEmpty()) {
+      removeOriginalMessages(emailIds); // 50 quota units
+    }
+    for (EmailJob job : jobs) {
+      processingJournal.record(job.email.getGmailId(), ProcessingJournal.Phase.DONE, null);
+    }
+  }
+
+  private RawDownload getRawMessage(Email email) throws IOException {
     // download limit = 2500 MB / day / user
-    return service.users().messages().get(USER, emailId).setFormat("raw").execute();
+    long sizeInBytes = email.getSizeInBytes();
+    long hedgeAfterMillis = downloadDeadlines.getHedgeAfterMillis(sizeInBytes);
+    long timeoutMillis = downloadDeadlines.getTimeoutMillis(sizeInBytes);
+    // The clocks start once the first attempt is sent, rather than while it waits for quota or a free slot.
+    AtomicLong sentMillis = new AtomicLong();
+    CompletionService<RawDownload> completionService = new ExecutorCompletionService<>(downloadExecutor);
+    List<Future<RawDownload>> attempts = new ArrayList<>(2);
+    // Every attempt has a cancellation of its own, which closes its connection, so that the one that lost can be
+    // aborted. Cancelling the email aborts them all.
+    List<Cancellation> attemptCancellations = new CopyOnWriteArrayList<>();
+    Cancellation cancellation = Cancellation.current();
+    Runnable cancelAttempts = () -> attemptCancellations.forEach(Cancellation::cancel);
+    if (cancellation != null) {
+      cancellation.onCancel(cancelAttempts);
+    }
+    // Every attempt downloads to a file of its own. The files of the attempts that lost are deleted, by the attempts
+    // themselves if they are still running.
+    Set<File> files = ConcurrentHashMap.newKeySet();
+    AtomicBoolean done = new AtomicBoolean();
+    Callable<RawDownload> download = () -> {
+      File file = File.createTempFile(Constants.PRODUCT_NAME.toLowerCase() + "-", ".eml");
+      files.add(file);
+      boolean downloaded = false;
+      try {
+        RawDownload rawDownload = new RawDownload(
+            downloadRawMessage(email, (int) timeoutMillis, file, sentMillis), file);
+        downloaded = true;
+        return rawDownload;
+      } finally {
+        // Gmail counts what it sent, also to attempts that lost or failed. This is what the base64 text took.
+        long rawLength = (file.length() + 2) / 3 * 4;
+        quotaLedger.recordDownload(rawLength);
+        serviceLifecycleManager.getTrafficCounter().onEmailBytesDownloaded(rawLength);
+        if (!downloaded || done.get()) {
+          Files.deleteIfExists(file.toPath());
+        }
+      }
+    };
+    Future<RawDownload> winner = null;
+    RawDownload result = null;
+    try {
+      attempts.add(submitAttempt(completionService, download, cancellation, attemptCancellations));
+      IOException failure = null;
+      for (int running = 1; running > 0; ) {
+        boolean hedged = attempts.size() > 1;
+        long startMillis = sentMillis.get();
+        long hedgeAtMillis = startMillis + hedgeAfterMillis;
+        long deadlineMillis = startMillis + timeoutMillis;
+        long waitMillis = startMillis == 0 ? UNSENT_POLL_MILLIS :
+            (hedged ? deadlineMillis : Math.min(hedgeAtMillis, deadlineMillis)) - System.currentTimeMillis();
+        Future<RawDownload> completed = completionService.poll(waitMillis, TimeUnit.MILLISECONDS);
+        if (completed == null) {
+          long nowMillis = System.currentTimeMillis();
+          if (startMillis == 0 || !hedged && nowMillis < Math.min(hedgeAtMillis, deadlineMillis)) {
+            continue;
+          }
+          if (hedged || nowMillis >= deadlineMillis) {
+            throw new SocketTimeoutException("Download of email " + email.getGmailId() + " timed out after " +
+                timeoutMillis + "ms.");
+          }
+          LOGGER.info("Download of email " + email.getGmailId() + " is slower than expected. " +
+              "Starting a duplicate download..");
+          attempts.add(submitAttempt(completionService, download, cancellation, attemptCancellations));
+          ++running;
+          continue;
+        }
+        --running;
+        try {
+          result = completed.get();
+          winner = completed;
+          downloadDeadlines.onCompleted(sizeInBytes, System.currentTimeMillis() - sentMillis.get());
+          return result;
+        } catch (ExecutionException e) {
+          failure = toIOException(e.getCause());
+          if (!hedged) {
+            break;
+          }
+        }
+      }
+      throw failure;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while downloading email " + email.getGmailId() + ".");
+    } finally {
+      done.set(true);
+      if (cancellation != null) {
+        cancellation.removeOnCancel(cancelAttempts);
+      }
+      // The slower of the hedged downloads isn't needed any more.
+      for (int i = 0; i < attempts.size(); ++i) {
+        if (attempts.get(i) != winner) {
+          attemptCancellations.get(i).cancel();
+        }
+      }
+      for (File file : files) {
+        if (result == null || !file.equals(result.file)) {
+          Files.deleteIfExists(file.toPath());
+        }
+      }
+    }
   }
 
-  private MimeMessage getMimeMessage(Message message) throws MessagingException, IOException {
-    String rawBefore = message.getRaw();
-    if (rawBefore == null) {
-      throw new IOException("Unable to extract the contents of the email.");
+  private static Future<RawDownload> submitAttempt(CompletionService<RawDownload> completionService,
+                                                   Callable<RawDownload> download, Cancellation cancellation,
+                                                   List<Cancellation> attemptCancellations) {
+    Cancellation attemptCancellation = new Cancellation();
+    attemptCancellations.add(attemptCancellation);
+    if (cancellation != null && cancellation.isCancelled()) {
+      attemptCancellation.cancel();
     }
-    byte[] emailBytes = decodeBase64(rawBefore);
-    Properties props = new Properties();
-    Session session = Session.getInstance(props);
-    return new MimeMessage(session, new ByteArrayInputStream(emailBytes));
+    return completionService.submit(() -> attemptCancellation.call(download));
   }
 
-  private void updateRawMessage(Message message, MimeMessage mimeMessage) throws IOException, MessagingException {
-    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-    mimeMessage.writeTo(buffer);
-    String raw = encodeBase64URLSafeString(buffer.toByteArray());
-    message.setRaw(raw);
+  // Streams the email to the file, rather than parsing the response with its base64 text into memory.
+  // Records when the request is sent in sentMillis, unless an earlier attempt was sent already.
+  private Message downloadRawMessage(Email email, int readTimeoutMillis, File file, AtomicLong sentMillis)
+      throws IOException {
+    quotaScheduler.acquire(GmailOperation.MESSAGES_GET, QuotaScheduler.Priority.BULK);
+    GmailServiceLifecycleManager.setReadTimeoutForCurrentThread(readTimeoutMillis);
+    try {
+      Gmail.Users.Messages.Get request = service.users().messages().get(USER, email.getGmailId()).setFormat("raw");
+      return concurrencyLimiter.execute("messages.get(raw)", email.getSizeInBytes(), () -> {
+        sentMillis.compareAndSet(0, System.currentTimeMillis());
+        HttpResponse response = request.executeUnparsed();
+        try (InputStream content = response.getContent();
+             OutputStream rawOut = new CancellableOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+          return RawMessageReader.read(content, rawOut);
+        } finally {
+          response.disconnect();
+        }
+      });
+    } finally {
+      GmailServiceLifecycleManager.clearReadTimeoutForCurrentThread();
+    }
   }
 
-  private void addLabel(String emailId, String labelId) throws IOException {
-    if (labelId == null) {
-      LOGGER.log(Level.WARNING, "Cannot add a label, because it was not specified.");
-      return;
+  private Message getMessageStructure(String emailId) throws IOException {
+    quotaScheduler.acquire(GmailOperation.MESSAGES_GET, QuotaScheduler.Priority.BULK);
+    Gmail.Users.Messages.Get request = service.users().messages().get(USER, emailId).setFormat("full")
+        .setFields(STRUCTURE_FIELDS);
+    return concurrencyLimiter.execute("messages.get(full)", request::execute);
+  }
+
+  private static String getPartFields(int depth) {
+    String fields = "partId,mimeType,filename,headers,body(attachmentId,size)";
+    return depth == 0 ? fields : fields + ",parts(" + getPartFields(depth - 1) + ")";
+  }
+
+  // Streams the attachment to a file, like the raw email.
+  private File downloadAttachment(String emailId, FetchedBodyPart attachment) throws IOException {
+    File file = File.createTempFile(Constants.PRODUCT_NAME.toLowerCase() + "-attachment-", ".tmp");
+    quotaScheduler.acquire(GmailOperation.MESSAGES_ATTACHMENTS_GET, QuotaScheduler.Priority.BULK);
+    GmailServiceLifecycleManager.setReadTimeoutForCurrentThread(
+        (int) downloadDeadlines.getTimeoutMillis(attachment.sizeInBytes));
+    try {
+      Gmail.Users.Messages.Attachments.Get request =
+          service.users().messages().attachments().get(USER, emailId, attachment.attachmentId);
+      concurrencyLimiter.execute("messages.attachments.get", attachment.sizeInBytes, () -> {
+        HttpResponse response = request.executeUnparsed();
+        try (InputStream content = response.getContent();
+             OutputStream dataOut = new CancellableOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+          return RawMessageReader.readAttachment(content, dataOut);
+        } finally {
+          response.disconnect();
+        }
+      });
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(file.toPath());
+      throw e;
+    } finally {
+      GmailServiceLifecycleManager.clearReadTimeoutForCurrentThread();
+    }
+    // what the base64 text of the attachment took
+    long dataLength = (file.length() + 2) / 3 * 4;
+    quotaLedger.recordDownload(dataLength);
+    serviceLifecycleManager.getTrafficCounter().onEmailBytesDownloaded(dataLength);
+    return file;
+  }
+
+  static IOException toIOException(Throwable t) {
+    if (t instanceof IOException) {
+      return (IOException) t;
+    } else if (t instanceof RuntimeException) {
+      throw (RuntimeException) t;
+    } else if (t instanceof Error) {
+      throw (Error) t;
     }
-    ModifyMessageRequest modifyMessageRequest = new ModifyMessageRequest();
-    modifyMessageRequest.setAddLabelIds(Collections.singletonList(labelId));
-    service.users().messages().modify(USER, emailId, modifyMessageRequest).execute();
+    return new IOException(t);
+  }
+
+  private static File writeSlimMessage(EmailJob job) throws IOException, MessagingException {
+    File file = File.createTempFile(Constants.PRODUCT_NAME.toLowerCase() + "-slim-", ".eml");
+    try (OutputStream outputStream =
+             new CancellableOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+      if (job.splicedMessage != null) {
+        job.splicedMessage.writeTo(outputStream, ORIGINAL_ID_HEADER, job.email.getGmailId());
+      } else {
+        job.mimeMessage.setHeader(ORIGINAL_ID_HEADER, job.email.getGmailId());
+        job.mimeMessage.writeTo(outputStream);
+      }
+    } catch (IOException | MessagingException | RuntimeException e) {
+      Files.deleteIfExists(file.toPath());
+      throw e;
+    }
+    return file;
   }
 
-  private Message insertSlimMessage(Message message) throws IOException {
-    // 1 messages.insert == 25 quota units
+  private Message insertSlimMessage(Message message, File slimFile, String labelId) throws IOException {
     // upload limit = 500 MB / day / user
-    return service.users().messages().insert(USER, message).setInternalDateSource("dateHeader").execute();
+    quotaScheduler.acquire(GmailOperation.MESSAGES_INSERT, QuotaScheduler.Priority.BULK);
+    Message newMessage = concurrencyLimiter.execute("messages.insert", slimFile.length(),
+        () -> insertSlimMessage(service, message, slimFile, labelId));
+    quotaLedger.recordUpload(slimFile.length());
+    serviceLifecycleManager.getTrafficCounter().onEmailBytesUploaded(slimFile.length());
+    return newMessage;
+  }
+
+  // The slim copy is uploaded as is, rather than as base64 text in JSON. The label is applied by the insert itself,
+  // rather than by a separate messages.modify. Large copies are uploaded in chunks, each of which is retried on its own
+  // after a failure. The others are uploaded with a single request, which isn't retried: the insert isn't idempotent,
+  // so a request that failed after Gmail stored the copy would store it again.
+  static Message insertSlimMessage(Gmail service, Message message, File slimFile, String labelId) throws IOException {
+    if (labelId == null) {
+      LOGGER.log(Level.WARNING, "Cannot add a label, because it was not specified.");
+    } else {
+      List<String> labelIds = new ArrayList<>();
+      if (message.getLabelIds() != null) {
+        labelIds.addAll(message.getLabelIds());
+      }
+      labelIds.add(labelId);
+      message.setLabelIds(labelIds);
+    }
+    FileContent content = new FileContent("message/rfc822", slimFile);
+    Gmail.Users.Messages.Insert request =
+        service.users().messages().insert(USER, message, content).setInternalDateSource("dateHeader");
+    boolean resumable = slimFile.length() > UPLOAD_CHUNK_SIZE;
+    request.getMediaHttpUploader().setDirectUploadEnabled(!resumable).setChunkSize(UPLOAD_CHUNK_SIZE);
+    if (!resumable) {
+      return request.execute();
+    }
+    // The requests are built while executing, so the setting must hold until then.
+    GmailServiceLifecycleManager.setRetryFailedRequestsForCurrentThread();
+    try {
+      return request.execute();
+    } finally {
+      GmailServiceLifecycleManager.clearRetryFailedRequestsForCurrentThread();
+    }
   }
 
   private void removeOriginalMessage(String emailId) throws IOException {
-    // 1 messages.delete == 10 quota units
-    service.users().messages().delete(USER, emailId).execute();
+    quotaScheduler.acquire(GmailOperation.MESSAGES_DELETE, QuotaScheduler.Priority.BULK);
+    Gmail.Users.Messages.Delete request = service.users().messages().delete(USER, emailId);
+    concurrencyLimiter.execute("messages.delete", request::execute);
+  }
+
+  private void removeOriginalMessages(List<String> emailIds) throws IOException {
+    quotaScheduler.acquire(GmailOperation.MESSAGES_BATCH_DELETE, QuotaScheduler.Priority.BULK);
+    BatchDeleteMessagesRequest batchDeleteMessagesRequest = new BatchDeleteMessagesRequest().setIds(emailIds);
+    Gmail.Users.Messages.BatchDelete request = service.users().messages().batchDelete(USER, batchDeleteMessagesRequest);
+    concurrencyLimiter.execute("messages.batchDelete", request::execute);
+    LOGGER.info("Removed " + emailIds.size() + " original emails.");
   }
 
   @Override
   public GetEmailMetadataTask getSearchTask(String query) throws IOException, InterruptedException {
-    List<String> emailIdsToProcess = getEmailIds(query).stream().map(Message::getId).collect(Collectors.toList());
+    return new GetEmailMetadataTask(startListing(query), getMetadataWorker());
+  }
 
-    JsonBatchCallback<Message> perEmailCallback = new JsonBatchCallback<>() {
-      @Override
-      public void onFailure(GoogleJsonError googleJsonError, HttpHeaders httpHeaders) throws IOException {
-        throw new IOException(googleJsonError.getMessage());
-      }
+  private EmailIdLister startListing(String query) throws IOException {
+    if (!Boolean.getBoolean(SHARDED_LISTING_PROPERTY)) {
+      return EmailIdLister.start(pageToken -> listEmailIds(query, pageToken));
+    }
+    List<String> shardQueries = ListingShards.split(query, this::getResultSizeEstimate,
+        System.currentTimeMillis() / 1000);
+    return EmailIdLister.start(getPageListers(shardQueries), EmailIdLister.MAX_CONCURRENT_SHARDS);
+  }
 
-      @Override
-      public void onSuccess(Message message, HttpHeaders httpHeaders) {
-        Map<String, String> headerMap = getHeaderMap(message);
-        String emailId = message.getId();
-        String uniqueId = headerMap.get("message-id");
-        List<String> labelIds = message.getLabelIds();
-        String from = headerMap.get("from");
-        String subject = headerMap.get("subject");
-        long timestamp = message.getInternalDate();
-        Email email = new Email(emailId, uniqueId, labelIds, from, subject, timestamp, message.getSizeEstimate());
-        emails.add(email);
-      }
-    };
+  private List<EmailIdLister.PageLister> getPageListers(List<String> queries) {
+    List<EmailIdLister.PageLister> pageListers = new ArrayList<>(queries.size());
+    for (String query : queries) {
+      pageListers.add(pageToken -> listEmailIds(query, pageToken));
+    }
+    return pageListers;
+  }
+
+  @Override
+  public GetEmailMetadataTask getTieredSearchTask(String query, int minEmailSizeInMb) {
+    List<String> tierQueries = SizeTiers.getQueries(query, minEmailSizeInMb);
+    // One tier at a time, so that the largest emails are listed, and therefore shown, first.
+    EmailIdLister emailIdLister = EmailIdLister.start(getPageListers(tierQueries), 1);
+    return new GetEmailMetadataTask(emailIdLister, getMetadataWorker());
+  }
 
-    return new GetEmailMetadataTask(
-        emailIdsToProcess,
-        (startIndexInclusive, endIndexExclusive) -> {
-          BatchRequest batch = service.batch();
-          for (int emailIndex = startIndexInclusive; emailIndex < endIndexExclusive; ++emailIndex) {
-            getEmailMetadata(service, emailIdsToProcess.get(emailIndex), batch, perEmailCallback);
+  private long getResultSizeEstimate(String query) throws IOException {
+    quotaScheduler.acquire(GmailOperation.MESSAGES_LIST, QuotaScheduler.Priority.BULK);
+    Gmail.Users.Messages.List request = service.users().messages().list(USER)
+        .setFields("resultSizeEstimate").setQ(query).setMaxResults(1L);
+    Long estimate = concurrencyLimiter.execute("messages.list", request::execute).getResultSizeEstimate();
+    return estimate == null ? 0 : estimate;
+  }
+
+  private GetEmailMetadataTask.Worker getMetadataWorker() {
+    if (!"http2".equals(System.getProperty(METADATA_ENGINE_PROPERTY))) {
+      return this::getEmailMetadata;
+    }
+    if (http2MetadataFetcher == null) {
+      http2MetadataFetcher = new Http2MetadataFetcher(Http2MetadataFetcher.GMAIL_MESSAGES_URI, METADATA_FIELDS,
+          serviceLifecycleManager.getCredential(), quotaScheduler, concurrencyLimiter,
+          serviceLifecycleManager.getTrafficCounter(), message -> addEmail(getEmail(message)));
+    }
+    return http2MetadataFetcher;
+  }
+
+  private GetEmailMetadataTask.BatchResult getEmailMetadata(List<String> emailIds) throws IOException {
+    List<String> failedEmailIds = new ArrayList<>();
+    AtomicInteger numberOfThrottledEmails = new AtomicInteger();
+    AtomicLong payloadBytes = new AtomicLong();
+    long batchStartNanos = System.nanoTime();
+    BatchRequest batch = service.batch();
+    for (String emailId : emailIds) {
+      JsonBatchCallback<Message> callback = new JsonBatchCallback<>() {
+        @Override
+        public void onFailure(GoogleJsonError googleJsonError, HttpHeaders httpHeaders) throws IOException {
+          if (ConcurrencyLimiter.isOverload(googleJsonError.getCode())) {
+            concurrencyLimiter.onOverload(batchStartNanos);
+          }
+          if (!RetryPolicy.isRetryable(googleJsonError)) {
+            throw new IOException(googleJsonError.getMessage());
+          }
+          if (RetryPolicy.isThrottled(googleJsonError)) {
+            numberOfThrottledEmails.incrementAndGet();
           }
+          LOGGER.info("Obtaining metadata of email " + emailId + " failed (" + googleJsonError.getMessage() +
+              "). Will retry later.");
+          failedEmailIds.add(emailId);
+        }
+
+        @Override
+        public void onSuccess(Message message, HttpHeaders httpHeaders) {
+          payloadBytes.addAndGet(getHeadersSize(message));
+          addEmail(getEmail(message));
+        }
+      };
+      getEmailMetadata(service, emailId, batch, callback);
+    }
+    // Each request in a batch is counted separately.
+    quotaScheduler.acquire(GmailOperation.MESSAGES_GET, batch.size(), QuotaScheduler.Priority.BULK);
+    AtomicLong requestMillis = new AtomicLong();
+    try {
+      concurrencyLimiter.execute("messages.get(metadata batch)", () -> {
+        long startMillis = System.currentTimeMillis();
+        try {
           batch.execute();
+        } finally {
+          requestMillis.set(System.currentTimeMillis() - startMillis);
         }
-    );
+        return null;
+      });
+    } catch (HttpResponseException e) {
+      if (!ConcurrencyLimiter.isOverload(e)) {
+        throw e;
+      }
+      LOGGER.info("Obtaining metadata of " + emailIds.size() + " emails failed (" + e.getStatusCode() +
+          "). Will retry later.");
+      return new GetEmailMetadataTask.BatchResult(emailIds, e.getStatusCode() == 429 ? emailIds.size() : 0, 0,
+          requestMillis.get());
+    }
+    return new GetEmailMetadataTask.BatchResult(failedEmailIds, numberOfThrottledEmails.get(), payloadBytes.get(),
+        requestMillis.get());
   }
 
-  private List<Message> getEmailIds(String query) throws IOException, InterruptedException {
-    List<Message> messages = new ArrayList<>();
-    String pageToken = null;
-    do {
-      // 1 messages.list == 5 quota units
-      Gmail.Users.Messages.List request = service.users().messages().list(USER).setFields("messages/id").setQ(query)
-          .setMaxResults(100000L).setPageToken(pageToken);
-      ListMessagesResponse response = request.execute();
-      if (response == null) {
-        break;
-      }
-      List<Message> responseMessages = response.getMessages();
-      if (responseMessages == null) {
-        break;
-      }
-      messages.addAll(responseMessages);
-      pageToken = response.getNextPageToken();
-      Thread.sleep(25);
-    } while (pageToken != null);
-    return messages;
+  private static Email getEmail(Message message) {
+    Map<String, String> headerMap = getHeaderMap(message);
+    String emailId = message.getId();
+    String uniqueId = headerMap.get("message-id");
+    List<String> labelIds = message.getLabelIds();
+    String from = headerMap.get("from");
+    String subject = headerMap.get("subject");
+    long timestamp = message.getInternalDate();
+    return new Email(emailId, uniqueId, labelIds, from, subject, timestamp, message.getSizeEstimate());
+  }
+
+  private ListMessagesResponse listEmailIds(String query, String pageToken) throws IOException {
+    quotaScheduler.acquire(GmailOperation.MESSAGES_LIST, QuotaScheduler.Priority.BULK);
+    // 500 is the largest page size that Gmail returns.
+    Gmail.Users.Messages.List request = service.users().messages().list(USER)
+        .setFields("messages/id,nextPageToken").setQ(query).setMaxResults(500L).setPageToken(pageToken);
+    return concurrencyLimiter.execute("messages.list", request::execute);
   }
 
   @Override
   public SortedMap<String, String> getIdToLabel() throws IOException {
-    // 1 labels.get == 1 quota unit
+    quotaScheduler.acquire(GmailOperation.LABELS_LIST, QuotaScheduler.Priority.INTERACTIVE);
     ListLabelsResponse response = service.users().labels().list(USER).setFields("labels/id,labels/name").execute();
     SortedMap<String, String> labelToId = new TreeMap<>();
     for (Label label : response.getLabels()) {
@@ -320,15 +962,22 @@ public class LiveModel implements Model {
     labelColor.setBackgroundColor("#ffffff");
     labelColor.setTextColor("#fb4c2f");
     labelIn.setColor(labelColor);
+    quotaScheduler.acquire(GmailOperation.LABELS_CREATE, QuotaScheduler.Priority.INTERACTIVE);
     Label labelOut = service.users().labels().create(USER, labelIn).execute();
     return labelOut.getId();
   }
 
   private static void getEmailMetadata(Gmail service, String messageId, BatchRequest batch,
                                        JsonBatchCallback<Message> callback) throws IOException {
-    // 1 messages.get == 5 quota units
-    service.users().messages().get(LiveModel.USER, messageId).setFields("id,labelIds,internalDate,payload/headers,sizeEstimate")
-        .queue(batch, callback);
+    service.users().messages().get(LiveModel.USER, messageId).setFields(METADATA_FIELDS).queue(batch, callback);
+  }
+
+  static long getHeadersSize(Message message) {
+    long size = 0;
+    for (MessagePartHeader header : message.getPayload().getHeaders()) {
+      size += header.getName().length() + header.getValue().length();
+    }
+    return size;
   }
 
   private static Map<String, String> getHeaderMap(Message message) {
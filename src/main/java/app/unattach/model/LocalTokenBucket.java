@@ -0,0 +1,36 @@
+package app.unattach.model;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+class LocalTokenBucket implements TokenBucket {
+  private final double capacity;
+  private final double unitsPerNano;
+  private final LongSupplier nanoClock;
+  private double availableUnits;
+  private long lastRefillNanos;
+
+  LocalTokenBucket(int unitsPerSecond, LongSupplier nanoClock) {
+    this.capacity = unitsPerSecond;
+    this.unitsPerNano = unitsPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+    this.nanoClock = nanoClock;
+    // Each set of requests should assume they start with clean quota.
+    this.availableUnits = capacity;
+    this.lastRefillNanos = nanoClock.getAsLong();
+  }
+
+  @Override
+  public synchronized long tryTake(int units) {
+    long nowNanos = nanoClock.getAsLong();
+    availableUnits = Math.min(capacity, availableUnits + (nowNanos - lastRefillNanos) * unitsPerNano);
+    lastRefillNanos = nowNanos;
+    // Requests larger than the bucket (e.g. big batches) are let through once the bucket is full,
+    // and then pay off the difference before anything else gets through.
+    double neededUnits = Math.min(units, capacity);
+    if (availableUnits >= neededUnits) {
+      availableUnits -= units;
+      return 0;
+    }
+    return Math.max(1, (long) Math.ceil((neededUnits - availableUnits) / unitsPerNano));
+  }
+}
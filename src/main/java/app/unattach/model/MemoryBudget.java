@@ -0,0 +1,50 @@
+package app.unattach.model;
+
+import java.util.logging.Logger;
+
+// Admits emails for processing only while the heap they are estimated to need fits into a budget, so that processing
+// many large emails concurrently can't run out of memory. An email that alone exceeds the budget is admitted once
+// nothing else is in flight, so that it is processed by itself rather than never.
+class MemoryBudget {
+  private static final Logger LOGGER = Logger.getLogger(MemoryBudget.class.getName());
+  // the budget in MB; by default, half of the maximum heap size
+  static final String BUDGET_PROPERTY = "unattach.memoryBudgetMb";
+
+  private final long budgetBytes;
+  // how many bytes of heap processing an email needs per byte of its size
+  private final int heapBytesPerEmailByte;
+  private long usedBytes;
+
+  MemoryBudget(long budgetBytes, int heapBytesPerEmailByte) {
+    this.budgetBytes = budgetBytes;
+    this.heapBytesPerEmailByte = heapBytesPerEmailByte;
+  }
+
+  static MemoryBudget fromSystemProperties(int heapBytesPerEmailByte) {
+    long defaultBudgetInMb = Runtime.getRuntime().maxMemory() / 2 / Constants.BYTES_IN_MEGABYTE;
+    long budgetInMb = Long.getLong(BUDGET_PROPERTY, defaultBudgetInMb);
+    LOGGER.info("Memory budget for processing emails: " + budgetInMb + "MB.");
+    return new MemoryBudget(budgetInMb * Constants.BYTES_IN_MEGABYTE, heapBytesPerEmailByte);
+  }
+
+  // Blocks until the email fits into the budget. Returns the bytes to release once the email is processed.
+  long acquire(Email email) throws InterruptedException {
+    long bytes = (long) email.getSizeInBytes() * heapBytesPerEmailByte;
+    synchronized (this) {
+      while (usedBytes > 0 && usedBytes + bytes > budgetBytes) {
+        wait();
+      }
+      usedBytes += bytes;
+    }
+    return bytes;
+  }
+
+  synchronized void release(long bytes) {
+    usedBytes -= bytes;
+    notifyAll();
+  }
+
+  synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+}
@@ -1,6 +1,5 @@
 package app.unattach.model;
 
-import app.unattach.controller.LongTask;
 import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
 
 import java.io.IOException;
@@ -15,10 +14,12 @@ public class MockModel implements Model {
   private final Random random = new Random(1337);
   private String filenameSchema = FilenameFactory.DEFAULT_SCHEMA;
   private ArrayList<Email> emails = new ArrayList<>();
+  private EmailFeed emailFeed = new EmailFeed();
 
   @Override
   public void clearPreviousSearch() {
     emails = new ArrayList<>();
+    emailFeed = new EmailFeed();
   }
 
   @Override
@@ -37,15 +38,32 @@ public class MockModel implements Model {
       String emailId = String.valueOf(i);
       emailIds.add(emailId);
     }
-    return new GetEmailMetadataTask(emailIds, (startIndexInclusive, endIndexExclusive) -> {
-      for (int i = minEmailSizeInBytes / 1000 / 1000; i < maxEmailId; ++i) {
-        if (startIndexInclusive <= i && i < endIndexExclusive) {
-          String emailId = String.valueOf(i);
-          emails.add(new Email(emailId, emailId, Arrays.asList("INBOX", "IMPORTANT"),
-              "some@example.com", "Subject " + i, System.currentTimeMillis(),
-              i * (int) Math.pow(2, 20)));
-        }
+    return createSearchTask(emailIds);
+  }
+
+  @Override
+  public GetEmailMetadataTask getTieredSearchTask(String query, int minEmailSizeInMb) {
+    List<String> emailIds = new ArrayList<>();
+    emails = new ArrayList<>();
+    int maxEmailId = 15;
+    // The size of an email is its ID in MB.
+    for (int i = maxEmailId - 1; i > minEmailSizeInMb; --i) {
+      emailIds.add(String.valueOf(i));
+    }
+    return createSearchTask(emailIds);
+  }
+
+  private GetEmailMetadataTask createSearchTask(List<String> emailIds) {
+    return new GetEmailMetadataTask(emailIds, batchEmailIds -> {
+      for (String emailId : batchEmailIds) {
+        int i = Integer.parseInt(emailId);
+        Email email = new Email(emailId, emailId, Arrays.asList("INBOX", "IMPORTANT"),
+            "some@example.com", "Subject " + i, System.currentTimeMillis(),
+            i * (int) Math.pow(2, 20));
+        emails.add(email);
+        emailFeed.publish(email);
       }
+      return new GetEmailMetadataTask.BatchResult(Collections.emptyList(), 0, 0, 0);
     });
   }
 
@@ -59,6 +77,11 @@ public class MockModel implements Model {
     return emails;
   }
 
+  @Override
+  public EmailFeed getEmailFeed() {
+    return emailFeed;
+  }
+
   @Override
   public String getFilenameSchema() {
     return filenameSchema;
@@ -74,14 +97,33 @@ public class MockModel implements Model {
   }
 
   @Override
-  public LongTask<ProcessEmailResult> getProcessTask(Email email, ProcessSettings processSettings) {
-    return new ProcessEmailTask(email, e -> {
-      if (random.nextBoolean()) {
-        return new ProcessEmailResult(Collections.singleton(e.getGmailId()));
-      } else {
-        throw new IOException("Something went wrong.");
-      }
-    });
+  public ProcessingPipeline getProcessingPipeline(ProcessSettings processSettings,
+                                                  ProcessingPipeline.Listener listener) {
+    List<ProcessingPipeline.Stage> stages = List.of(
+        new ProcessingPipeline.Stage("fetch", 4, 2, job -> Thread.sleep(500), true),
+        new ProcessingPipeline.Stage("write", 1, 2, job -> {
+          Thread.sleep(200);
+          if (random.nextBoolean()) {
+            throw new IOException("Something went wrong.");
+          }
+          job.fileNames = Collections.singleton(job.email.getGmailId());
+        }),
+        new ProcessingPipeline.Stage("upload", 2, 2, job -> Thread.sleep(300))
+    );
+    return new ProcessingPipeline(processSettings, stages, listener);
+  }
+
+  @Override
+  public List<List<Email>> getProcessingPlan(List<Email> emails, ProcessOption processOption,
+                                             boolean mostSpaceFirst) {
+    QuotaLedger.Usage todaysUsage = new QuotaLedger.Usage(0, 0, 0);
+    return mostSpaceFirst ? ProcessingPlanner.splitIntoDaysBySpaceFreed(emails, processOption, todaysUsage) :
+        ProcessingPlanner.splitIntoDays(emails, processOption, todaysUsage);
+  }
+
+  @Override
+  public long getMillisUntilQuotaReset() {
+    return 10000;
   }
 
   @Override
@@ -1,6 +1,5 @@
 package app.unattach.model;
 
-import app.unattach.controller.LongTask;
 import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
 
 import java.io.IOException;
@@ -12,11 +11,15 @@ public interface Model {
   void clearPreviousSearch();
   String createLabel(String name) throws IOException;
   GetEmailMetadataTask getSearchTask(String query) throws IOException, InterruptedException;
+  GetEmailMetadataTask getTieredSearchTask(String query, int minEmailSizeInMb);
   String getEmailAddress() throws IOException;
   SortedMap<String, String> getIdToLabel() throws IOException;
   List<Email> getEmails();
+  EmailFeed getEmailFeed();
   String getFilenameSchema();
-  LongTask<ProcessEmailResult> getProcessTask(Email email, ProcessSettings processSettings);
+  ProcessingPipeline getProcessingPipeline(ProcessSettings processSettings, ProcessingPipeline.Listener listener);
+  List<List<Email>> getProcessingPlan(List<Email> emails, ProcessOption processOption, boolean mostSpaceFirst);
+  long getMillisUntilQuotaReset();
   String getRemovedLabelId();
   DefaultArtifactVersion getLatestVersion() throws IOException, InterruptedException;
   String getSearchQuery();
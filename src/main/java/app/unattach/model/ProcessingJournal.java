@@ -0,0 +1,209 @@
+package app.unattach.model;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Records how far the processing of each email got, so that it resumes where it left off after the app was closed or
+// crashed. Records are appended to a log, which is synced to disk in batches: periodically, and before any step that
+// must not be repeated blindly (inserting a slim copy), once for everything appended so far.
+class ProcessingJournal implements Closeable {
+  private static final Logger LOGGER = Logger.getLogger(ProcessingJournal.class.getName());
+  private static final long SYNC_INTERVAL_MILLIS = 1000;
+  // The log is rewritten with only the latest record of each email once it has this many superseded records.
+  private static final int MAX_SUPERSEDED_RECORDS = 100000;
+
+  enum Phase {
+    // If nothing follows, the slim copy may or may not have been inserted.
+    STARTED,
+    // The argument is the ID of the slim copy.
+    INSERTED,
+    // Nothing is left to resume.
+    DONE
+  }
+
+  static class Entry {
+    final Phase phase;
+    final String argument;
+
+    Entry(Phase phase, String argument) {
+      this.phase = phase;
+      this.argument = argument;
+    }
+  }
+
+  private final File file;
+  private final Map<String, Entry> entries = new HashMap<>();
+  private final StringBuilder unsyncedRecords = new StringBuilder();
+  private long numberOfRecords;
+  private final Object syncLock = new Object();
+  private long numberOfSyncedRecords;
+  private final FileChannel channel;
+  private final ScheduledExecutorService syncer;
+
+  ProcessingJournal(String account) throws IOException {
+    this(getDefaultJournalPath(account).toFile());
+  }
+
+  ProcessingJournal(File file) throws IOException {
+    this.file = file;
+    long numberOfLoadedRecords = load();
+    if (numberOfLoadedRecords - entries.size() > MAX_SUPERSEDED_RECORDS) {
+      compact();
+    }
+    if (!endsWithNewLine()) {
+      // Don't append to a record that was torn by a crash.
+      unsyncedRecords.append('\n');
+    }
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND);
+    syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "processing-journal");
+      thread.setDaemon(true);
+      return thread;
+    });
+    syncer.scheduleWithFixedDelay(this::syncQuietly, SYNC_INTERVAL_MILLIS, SYNC_INTERVAL_MILLIS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  synchronized Entry get(String emailId) {
+    return entries.get(emailId);
+  }
+
+  synchronized void record(String emailId, Phase phase, String argument) {
+    entries.put(emailId, new Entry(phase, argument));
+    appendRecord(unsyncedRecords, emailId, phase, argument);
+    ++numberOfRecords;
+  }
+
+  // Returns once everything recorded so far is on disk. Callers that arrive during a sync share the next one.
+  void sync() throws IOException {
+    long target;
+    synchronized (this) {
+      target = numberOfRecords;
+    }
+    synchronized (syncLock) {
+      if (numberOfSyncedRecords >= target) {
+        return;
+      }
+      String records;
+      long numberOfRecordsToSync;
+      synchronized (this) {
+        records = unsyncedRecords.toString();
+        unsyncedRecords.setLength(0);
+        numberOfRecordsToSync = numberOfRecords;
+      }
+      try {
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(records);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        channel.force(false);
+      } catch (IOException e) {
+        // Try again with the next sync. Records written twice do no harm, since only the latest one counts.
+        synchronized (this) {
+          unsyncedRecords.insert(0, records);
+        }
+        throw e;
+      }
+      numberOfSyncedRecords = numberOfRecordsToSync;
+    }
+  }
+
+  @Override
+  public void close() {
+    syncer.shutdownNow();
+    syncQuietly();
+    try {
+      channel.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to close the processing journal.", e);
+    }
+  }
+
+  private void syncQuietly() {
+    try {
+      sync();
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Failed to save the processing journal.", e);
+    }
+  }
+
+  private long load() throws IOException {
+    if (!file.exists()) {
+      return 0;
+    }
+    long numberOfLoadedRecords = 0;
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        String[] fields = line.split("\t");
+        try {
+          entries.put(fields[1], new Entry(Phase.valueOf(fields[0]), fields.length > 2 ? fields[2] : null));
+          ++numberOfLoadedRecords;
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+          // e.g. the last record, if the app crashed while writing it
+          LOGGER.warning("Skipping a malformed record in the processing journal: " + line);
+        }
+      }
+    }
+    LOGGER.info("Loaded " + entries.size() + " emails from the processing journal.");
+    return numberOfLoadedRecords;
+  }
+
+  private boolean endsWithNewLine() throws IOException {
+    if (!file.exists() || file.length() == 0) {
+      return true;
+    }
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+      randomAccessFile.seek(randomAccessFile.length() - 1);
+      return randomAccessFile.read() == '\n';
+    }
+  }
+
+  private void compact() throws IOException {
+    File compactedFile = new File(file.getPath() + ".tmp");
+    try (FileChannel compactedChannel = FileChannel.open(compactedFile.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      StringBuilder records = new StringBuilder();
+      entries.forEach((emailId, entry) -> appendRecord(records, emailId, entry.phase, entry.argument));
+      ByteBuffer buffer = StandardCharsets.UTF_8.encode(records.toString());
+      while (buffer.hasRemaining()) {
+        compactedChannel.write(buffer);
+      }
+      compactedChannel.force(false);
+    }
+    Files.move(compactedFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void appendRecord(StringBuilder records, String emailId, Phase phase, String argument) {
+    records.append(phase).append('\t').append(emailId);
+    if (argument != null) {
+      records.append('\t').append(argument);
+    }
+    records.append('\n');
+  }
+
+  private static Path getDefaultJournalPath(String account) {
+    String userHome = System.getProperty("user.home");
+    return Paths.get(userHome, "." + Constants.PRODUCT_NAME.toLowerCase() + "-journal-" +
+        account.replaceAll("[^A-Za-z0-9@._-]", "_") + ".log");
+  }
+}
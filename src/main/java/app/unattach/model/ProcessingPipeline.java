@@ -0,0 +1,412 @@
+package app.unattach.model;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Processes emails in stages (e.g. download, parse, write, upload), each with its own threads, so that different
+// emails can be in different stages at the same time. Every stage accepts only a bounded number of emails; when it is
+// full, the previous stage waits before handing over the next email. A batched stage collects emails and processes
+// them together, e.g. to remove many originals in one request. With a memory budget, an email is only submitted once
+// the heap it needs fits into it. A batched stage only needs to know which emails it processes, so the heap goes back
+// to the budget before an email waits for a batch, e.g. once it was uploaded.
+//
+// The work in flight in a cancellable stage (e.g. a download) is aborted when the pipeline is paused or stopped. When
+// paused, the aborted emails run that stage again once resumed, while no email starts any other stage; nothing queued
+// is lost. When stopped, they are dropped, unless they already started a stage that isn't cancellable (e.g. an upload),
+// in which case they run to the end, so that no email is left half-processed (e.g. inserted without the original being
+// removed).
+public class ProcessingPipeline implements AutoCloseable {
+  private static final Logger LOGGER = Logger.getLogger(ProcessingPipeline.class.getName());
+
+  // Called on the pipeline's threads. The emails are observed by the UI, so their statuses are left to the listener.
+  public interface Listener {
+    void onEmailProcessed(Email email);
+    void onEmailFailed(Email email, Throwable t);
+  }
+
+  interface Phase {
+    void run(EmailJob job) throws Exception;
+  }
+
+  // Either all emails of the batch succeed, or all fail.
+  interface BatchPhase {
+    void run(List<EmailJob> jobs) throws Exception;
+  }
+
+  static class Stage {
+    final String name;
+    final int threads;
+    // how many emails may wait for a free thread
+    final int capacity;
+    final Phase phase;
+    // whether the phase may be aborted and run again, i.e. it doesn't change the mailbox
+    final boolean cancellable;
+    final BatchPhase batchPhase;
+    final int maxBatchSize;
+    // how long the first email of a batch may wait for the batch to fill up
+    final long maxDelayMillis;
+
+    Stage(String name, int threads, int capacity, Phase phase) {
+      this(name, threads, capacity, phase, false);
+    }
+
+    Stage(String name, int threads, int capacity, Phase phase, boolean cancellable) {
+      this(name, threads, capacity, phase, cancellable, null, 1, 0);
+    }
+
+    private Stage(String name, int threads, int capacity, Phase phase, boolean cancellable, BatchPhase batchPhase,
+                  int maxBatchSize, long maxDelayMillis) {
+      this.name = name;
+      this.threads = threads;
+      this.capacity = capacity;
+      this.phase = phase;
+      this.cancellable = cancellable;
+      this.batchPhase = batchPhase;
+      this.maxBatchSize = maxBatchSize;
+      this.maxDelayMillis = maxDelayMillis;
+    }
+
+    // One batch at a time, while the next one fills up.
+    static Stage batched(String name, int maxBatchSize, long maxDelayMillis, BatchPhase batchPhase) {
+      return new Stage(name, 1, 2 * maxBatchSize, null, false, batchPhase, maxBatchSize, maxDelayMillis);
+    }
+  }
+
+  private interface Runner {
+    // Blocks while the stage is full.
+    void submit(EmailJob job) throws InterruptedException;
+    void close();
+  }
+
+  private final ProcessSettings processSettings;
+  private final Listener listener;
+  private final List<Runner> runners;
+  private final MemoryBudget memoryBudget;
+  // the cancellable phases currently running, guarded by this
+  private final Set<Cancellation> running = new HashSet<>();
+  private volatile boolean stopped;
+  private boolean paused;
+  private int pending;
+
+  ProcessingPipeline(ProcessSettings processSettings, List<Stage> stages, Listener listener) {
+    this(processSettings, stages, null, listener);
+  }
+
+  ProcessingPipeline(ProcessSettings processSettings, List<Stage> stages, MemoryBudget memoryBudget,
+                     Listener listener) {
+    this.processSettings = processSettings;
+    this.listener = listener;
+    this.memoryBudget = memoryBudget;
+    runners = new ArrayList<>(stages.size());
+    for (Stage stage : stages) {
+      runners.add(stage.batchPhase == null ? new StageRunner(stage, runners.size()) :
+          new BatchRunner(stage, runners.size()));
+    }
+  }
+
+  // Blocks while the first stage is full, or the email doesn't fit into the memory budget.
+  public void submit(Email email) throws InterruptedException {
+    if (stopped) {
+      return;
+    }
+    EmailJob job = new EmailJob(email, processSettings);
+    if (memoryBudget != null) {
+      job.memoryBytes = memoryBudget.acquire(email);
+    }
+    synchronized (this) {
+      ++pending;
+    }
+    try {
+      runners.get(0).submit(job);
+    } catch (InterruptedException e) {
+      onJobDone(job);
+      throw e;
+    }
+  }
+
+  // The requests in flight are aborted without holding the lock.
+  public void stop() {
+    List<Cancellation> cancellations;
+    synchronized (this) {
+      stopped = true;
+      cancellations = new ArrayList<>(running);
+      notifyAll();
+    }
+    cancellations.forEach(Cancellation::cancel);
+  }
+
+  // Frees the quota and bandwidth used by the pipeline right away, e.g. for a search.
+  public void pause() {
+    List<Cancellation> cancellations;
+    synchronized (this) {
+      paused = true;
+      cancellations = new ArrayList<>(running);
+    }
+    cancellations.forEach(Cancellation::cancel);
+  }
+
+  public synchronized void resume() {
+    paused = false;
+    notifyAll();
+  }
+
+  public synchronized boolean isPaused() {
+    return paused;
+  }
+
+  // Returns false if the email should be dropped. The cancellation is null for stages that aren't cancellable.
+  private synchronized boolean startPhase(EmailJob job, Cancellation cancellation) throws InterruptedException {
+    while (paused && !stopped) {
+      wait();
+    }
+    if (stopped && !job.committed) {
+      return false;
+    }
+    if (cancellation == null) {
+      job.committed = true;
+    } else {
+      running.add(cancellation);
+    }
+    return true;
+  }
+
+  private synchronized void endPhase(Cancellation cancellation) {
+    running.remove(cancellation);
+  }
+
+  public synchronized void awaitCompletion() throws InterruptedException {
+    while (pending > 0) {
+      wait();
+    }
+  }
+
+  @Override
+  public void close() {
+    runners.forEach(Runner::close);
+  }
+
+  private void onJobDone(EmailJob job) {
+    job.deleteRawFile();
+    job.deleteSlimFile();
+    releaseMemory(job);
+    synchronized (this) {
+      if (--pending == 0) {
+        notifyAll();
+      }
+    }
+  }
+
+  private void releaseMemory(EmailJob job) {
+    if (memoryBudget != null) {
+      memoryBudget.release(job.memoryBytes);
+    }
+    job.memoryBytes = 0;
+  }
+
+  // Returns false if the email has no further stages.
+  private boolean moveOn(EmailJob job, int index) throws InterruptedException {
+    if (!job.finished && index + 1 < runners.size()) {
+      Runner next = runners.get(index + 1);
+      if (next instanceof BatchRunner) {
+        releaseMemory(job);
+      }
+      next.submit(job);
+      return true;
+    }
+    listener.onEmailProcessed(job.email);
+    return false;
+  }
+
+  private class StageRunner implements Runner {
+    private final Stage stage;
+    private final int index;
+    private final ExecutorService executor;
+    // one permit per email that is running in or waiting for this stage
+    private final Semaphore slots;
+
+    StageRunner(Stage stage, int index) {
+      this.stage = stage;
+      this.index = index;
+      executor = Executors.newFixedThreadPool(stage.threads, runnable -> {
+        Thread thread = new Thread(runnable, "pipeline-" + stage.name);
+        thread.setDaemon(true);
+        return thread;
+      });
+      slots = new Semaphore(stage.threads + stage.capacity);
+    }
+
+    @Override
+    public void submit(EmailJob job) throws InterruptedException {
+      slots.acquire();
+      executor.execute(() -> {
+        try {
+          run(job);
+        } finally {
+          slots.release();
+        }
+      });
+    }
+
+    private void run(EmailJob job) {
+      try {
+        if (!runPhase(job)) {
+          LOGGER.info("Processing of " + job.email + " was stopped before stage " + stage.name + " finished.");
+          onJobDone(job);
+          return;
+        }
+        // Holding on to this stage's slot until the next stage has room is what propagates the backpressure.
+        if (moveOn(job, index)) {
+          return;
+        }
+      } catch (Throwable t) {
+        LOGGER.log(Level.WARNING, "Processing of " + job.email + " failed in stage " + stage.name + ".", t);
+        listener.onEmailFailed(job.email, t);
+      }
+      onJobDone(job);
+    }
+
+    // Returns false if the email was dropped.
+    private boolean runPhase(EmailJob job) throws Exception {
+      while (true) {
+        Cancellation cancellation = stage.cancellable ? new Cancellation() : null;
+        if (!startPhase(job, cancellation)) {
+          return false;
+        }
+        if (cancellation == null) {
+          stage.phase.run(job);
+          return true;
+        }
+        try {
+          cancellation.call(() -> {
+            stage.phase.run(job);
+            return null;
+          });
+          return true;
+        } catch (Exception e) {
+          if (!cancellation.isCancelled()) {
+            throw e;
+          }
+          // Paused or stopped: startPhase() decides whether to run the phase again.
+        } finally {
+          endPhase(cancellation);
+        }
+      }
+    }
+
+    @Override
+    public void close() {
+      executor.shutdownNow();
+    }
+  }
+
+  private class BatchRunner implements Runner {
+    private final Stage stage;
+    private final int index;
+    private final ExecutorService executor;
+    private final Semaphore slots;
+    // guarded by this
+    private final List<EmailJob> waiting = new ArrayList<>();
+    private long firstWaitingMillis;
+
+    BatchRunner(Stage stage, int index) {
+      this.stage = stage;
+      this.index = index;
+      executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "pipeline-" + stage.name);
+        thread.setDaemon(true);
+        return thread;
+      });
+      slots = new Semaphore(stage.capacity);
+      executor.execute(this::runBatches);
+    }
+
+    @Override
+    public void submit(EmailJob job) throws InterruptedException {
+      slots.acquire();
+      synchronized (this) {
+        if (waiting.isEmpty()) {
+          firstWaitingMillis = System.currentTimeMillis();
+        }
+        waiting.add(job);
+        notifyAll();
+      }
+    }
+
+    private void runBatches() {
+      try {
+        while (true) {
+          List<EmailJob> batch = takeBatch();
+          try {
+            run(batch);
+          } finally {
+            slots.release(batch.size());
+          }
+        }
+      } catch (InterruptedException e) {
+        // The pipeline was closed.
+      }
+    }
+
+    // Waits until the batch is full, its first email has waited long enough, or the pipeline is stopped.
+    private synchronized List<EmailJob> takeBatch() throws InterruptedException {
+      while (waiting.size() < stage.maxBatchSize) {
+        if (waiting.isEmpty()) {
+          wait();
+          continue;
+        }
+        long waitMillis = firstWaitingMillis + stage.maxDelayMillis - System.currentTimeMillis();
+        if (waitMillis <= 0 || stopped) {
+          break;
+        }
+        wait(waitMillis);
+      }
+      List<EmailJob> firstWaiting = waiting.subList(0, Math.min(waiting.size(), stage.maxBatchSize));
+      List<EmailJob> batch = new ArrayList<>(firstWaiting);
+      firstWaiting.clear();
+      firstWaitingMillis = System.currentTimeMillis();
+      return batch;
+    }
+
+    private void run(List<EmailJob> jobs) throws InterruptedException {
+      List<EmailJob> batch = new ArrayList<>(jobs.size());
+      for (EmailJob job : jobs) {
+        if (startPhase(job, null)) {
+          batch.add(job);
+        } else {
+          LOGGER.info("Processing of " + job.email + " was stopped before stage " + stage.name + " finished.");
+          onJobDone(job);
+        }
+      }
+      if (batch.isEmpty()) {
+        return;
+      }
+      try {
+        stage.batchPhase.run(batch);
+      } catch (Exception e) {
+        LOGGER.log(Level.WARNING, "Processing of " + batch.size() + " emails failed in stage " + stage.name + ".", e);
+        for (EmailJob job : batch) {
+          listener.onEmailFailed(job.email, e);
+          onJobDone(job);
+        }
+        return;
+      }
+      for (EmailJob job : batch) {
+        if (!moveOn(job, index)) {
+          onJobDone(job);
+        }
+      }
+    }
+
+    @Override
+    public void close() {
+      executor.shutdownNow();
+    }
+  }
+}
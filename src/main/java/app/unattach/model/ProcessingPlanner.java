@@ -0,0 +1,203 @@
+package app.unattach.model;
+
+import java.util.*;
+
+// Splits the emails to process into chunks that fit into the daily Gmail transfer limits.
+class ProcessingPlanner {
+  // The size of an email once its attachments are removed isn't known before processing, so assume a generous one.
+  static final long SLIM_MESSAGE_ESTIMATE_BYTES = 256 * 1024;
+  // The resolution of the download budget when choosing the emails for a day.
+  private static final long BUDGET_UNIT_BYTES = SLIM_MESSAGE_ESTIMATE_BYTES;
+  // Only the largest emails that together need up to this many times the budget compete for it. The smaller ones
+  // fill the gaps afterwards.
+  private static final int CANDIDATE_BUDGETS = 2;
+  // Bounds the time and memory the knapsack takes with many small emails.
+  private static final int MAX_KNAPSACK_ITEMS = 2000;
+
+  private ProcessingPlanner() {}
+
+  // The chunk at index i is meant to be processed i days from today; the first chunk may be empty.
+  static List<List<Email>> splitIntoDays(List<Email> emails, ProcessOption processOption,
+                                         QuotaLedger.Usage todaysUsage) {
+    List<List<Email>> days = new ArrayList<>();
+    List<Email> day = new ArrayList<>();
+    long remainingDownloadBytes = todaysUsage.getRemainingDownloadBytes();
+    long remainingUploadBytes = todaysUsage.getRemainingUploadBytes();
+    for (Email email : emails) {
+      long downloadBytes = getDownloadBytes(email);
+      long uploadBytes = getUploadBytes(email, processOption);
+      while (downloadBytes > remainingDownloadBytes || uploadBytes > remainingUploadBytes) {
+        if (day.isEmpty() && remainingDownloadBytes == QuotaLedger.DAILY_DOWNLOAD_LIMIT_BYTES &&
+            remainingUploadBytes == QuotaLedger.DAILY_UPLOAD_LIMIT_BYTES) {
+          // It would not fit into any day, so let Gmail decide.
+          break;
+        }
+        days.add(day);
+        day = new ArrayList<>();
+        remainingDownloadBytes = QuotaLedger.DAILY_DOWNLOAD_LIMIT_BYTES;
+        remainingUploadBytes = QuotaLedger.DAILY_UPLOAD_LIMIT_BYTES;
+      }
+      day.add(email);
+      remainingDownloadBytes -= downloadBytes;
+      remainingUploadBytes -= uploadBytes;
+    }
+    if (!day.isEmpty()) {
+      days.add(day);
+    }
+    return days;
+  }
+
+  // Chooses the emails of each day so that as much space as possible is freed, in case the run doesn't get to the later
+  // days. Within a day, the emails that free the most space come first.
+  //
+  // Every email costs about the same upload bytes and quota units, since only its slim copy is uploaded, so it's the
+  // download limit and the number of emails per day that matter. If the day's share of the emails with the most
+  // reclaimable bytes fits into the download limit, it's optimal to take them. Otherwise, the download limit is
+  // what's binding, and the emails are chosen by solving the knapsack problem over it.
+  static List<List<Email>> splitIntoDaysBySpaceFreed(List<Email> emails, ProcessOption processOption,
+                                                     QuotaLedger.Usage todaysUsage) {
+    if (!processOption.shouldRemove()) {
+      // No space is freed, so there is nothing to optimise.
+      return splitIntoDays(emails, processOption, todaysUsage);
+    }
+    List<Email> remaining = new ArrayList<>(emails);
+    remaining.sort(bySpaceFreed(processOption));
+    List<List<Email>> days = new ArrayList<>();
+    long downloadBudget = todaysUsage.getRemainingDownloadBytes();
+    long uploadBudget = todaysUsage.getRemainingUploadBytes();
+    while (!remaining.isEmpty()) {
+      BitSet chosen = chooseForDay(remaining, processOption, downloadBudget, uploadBudget);
+      if (chosen.isEmpty() && downloadBudget == QuotaLedger.DAILY_DOWNLOAD_LIMIT_BYTES &&
+          uploadBudget == QuotaLedger.DAILY_UPLOAD_LIMIT_BYTES) {
+        // It would not fit into any day, so let Gmail decide.
+        chosen.set(0);
+      }
+      List<Email> day = new ArrayList<>();
+      List<Email> rest = new ArrayList<>();
+      for (int i = 0; i < remaining.size(); ++i) {
+        (chosen.get(i) ? day : rest).add(remaining.get(i));
+      }
+      days.add(day);
+      remaining = rest;
+      downloadBudget = QuotaLedger.DAILY_DOWNLOAD_LIMIT_BYTES;
+      uploadBudget = QuotaLedger.DAILY_UPLOAD_LIMIT_BYTES;
+    }
+    return days;
+  }
+
+  // Returns the indices of the chosen candidates, which are sorted by the space they free, most first.
+  private static BitSet chooseForDay(List<Email> candidates, ProcessOption processOption, long downloadBudget,
+                                     long uploadBudget) {
+    BitSet chosen = new BitSet(candidates.size());
+    long downloadBytes = 0;
+    long uploadBytes = 0;
+    for (int i = 0; i < candidates.size(); ++i) {
+      Email email = candidates.get(i);
+      uploadBytes += getUploadBytes(email, processOption);
+      if (uploadBytes > uploadBudget) {
+        break;
+      }
+      chosen.set(i);
+      downloadBytes += getDownloadBytes(email);
+    }
+    if (downloadBytes <= downloadBudget) {
+      // Only the number of emails is limited.
+      return chosen;
+    }
+    chosen = chooseByKnapsack(candidates, processOption, downloadBudget);
+    fillGaps(chosen, candidates, processOption, downloadBudget, uploadBudget);
+    return chosen;
+  }
+
+  // 0/1 knapsack over the download budget, in whole budget units, so that rounding can't exceed the budget.
+  private static BitSet chooseByKnapsack(List<Email> candidates, ProcessOption processOption, long downloadBudget) {
+    int capacity = (int) (downloadBudget / BUDGET_UNIT_BYTES);
+    List<Integer> items = new ArrayList<>();
+    long candidateBytes = 0;
+    for (int i = 0; i < candidates.size(); ++i) {
+      if (candidateBytes > CANDIDATE_BUDGETS * downloadBudget || items.size() == MAX_KNAPSACK_ITEMS) {
+        break;
+      }
+      long downloadBytes = getDownloadBytes(candidates.get(i));
+      if (downloadBytes <= downloadBudget) {
+        items.add(i);
+        candidateBytes += downloadBytes;
+      }
+    }
+    long[] best = new long[capacity + 1];
+    BitSet[] taken = new BitSet[items.size()];
+    for (int i = 0; i < items.size(); ++i) {
+      Email email = candidates.get(items.get(i));
+      int weight = getBudgetUnits(email);
+      long value = getReclaimedBytes(email, processOption);
+      taken[i] = new BitSet(capacity + 1);
+      for (int c = capacity; c >= weight; --c) {
+        if (best[c - weight] + value > best[c]) {
+          best[c] = best[c - weight] + value;
+          taken[i].set(c);
+        }
+      }
+    }
+    BitSet chosen = new BitSet(candidates.size());
+    for (int i = items.size() - 1, c = capacity; i >= 0; --i) {
+      if (taken[i].get(c)) {
+        chosen.set(items.get(i));
+        c -= getBudgetUnits(candidates.get(items.get(i)));
+      }
+    }
+    return chosen;
+  }
+
+  private static void fillGaps(BitSet chosen, List<Email> candidates, ProcessOption processOption,
+                               long downloadBudget, long uploadBudget) {
+    long downloadBytes = 0;
+    long uploadBytes = 0;
+    for (int i = chosen.nextSetBit(0); i >= 0; i = chosen.nextSetBit(i + 1)) {
+      downloadBytes += getDownloadBytes(candidates.get(i));
+      uploadBytes += getUploadBytes(candidates.get(i), processOption);
+    }
+    // The emails that free the least space go first, should the number of emails be the limit.
+    for (int i = chosen.length() - 1; i >= 0 && uploadBytes > uploadBudget; i = chosen.previousSetBit(i - 1)) {
+      chosen.clear(i);
+      downloadBytes -= getDownloadBytes(candidates.get(i));
+      uploadBytes -= getUploadBytes(candidates.get(i), processOption);
+    }
+    for (int i = 0; i < candidates.size(); ++i) {
+      long emailDownloadBytes = getDownloadBytes(candidates.get(i));
+      long emailUploadBytes = getUploadBytes(candidates.get(i), processOption);
+      if (!chosen.get(i) && downloadBytes + emailDownloadBytes <= downloadBudget &&
+          uploadBytes + emailUploadBytes <= uploadBudget) {
+        chosen.set(i);
+        downloadBytes += emailDownloadBytes;
+        uploadBytes += emailUploadBytes;
+      }
+    }
+  }
+
+  private static int getBudgetUnits(Email email) {
+    return (int) ((getDownloadBytes(email) + BUDGET_UNIT_BYTES - 1) / BUDGET_UNIT_BYTES);
+  }
+
+  private static Comparator<Email> bySpaceFreed(ProcessOption processOption) {
+    return Comparator.comparingLong((Email email) -> getReclaimedBytes(email, processOption))
+        .thenComparingLong(Email::getSizeInBytes).reversed();
+  }
+
+  static long getReclaimedBytes(Email email, ProcessOption processOption) {
+    if (!processOption.shouldRemove()) {
+      return 0;
+    }
+    return email.getSizeInBytes() - getUploadBytes(email, processOption);
+  }
+
+  static long getDownloadBytes(Email email) {
+    return email.getSizeInBytes();
+  }
+
+  static long getUploadBytes(Email email, ProcessOption processOption) {
+    if (!processOption.shouldRemove()) {
+      return 0;
+    }
+    return Math.min(email.getSizeInBytes(), SLIM_MESSAGE_ESTIMATE_BYTES);
+  }
+}
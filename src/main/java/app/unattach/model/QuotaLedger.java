@@ -0,0 +1,196 @@
+package app.unattach.model;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.*;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Keeps track of the daily Gmail usage of each account across runs. Other processes may use the same file, so the
+// file is only changed while holding a lock on it, by adding the usage recorded since the last save to what it holds.
+class QuotaLedger {
+  private static final Logger LOGGER = Logger.getLogger(QuotaLedger.class.getName());
+  // Gmail quotas are reset at midnight Pacific Time.
+  static final ZoneId QUOTA_ZONE = ZoneId.of("America/Los_Angeles");
+  // download limit = 2500 MB / day / user
+  static final long DAILY_DOWNLOAD_LIMIT_BYTES = 2500L * Constants.BYTES_IN_MEGABYTE;
+  // upload limit = 500 MB / day / user
+  static final long DAILY_UPLOAD_LIMIT_BYTES = 500L * Constants.BYTES_IN_MEGABYTE;
+  private static final int DAYS_TO_KEEP = 30;
+  private static final long SAVE_INTERVAL_MILLIS = 5000;
+  private static final String BYTES_DOWN = "bytes_down";
+  private static final String BYTES_UP = "bytes_up";
+  private static final String QUOTA_UNITS = "quota_units";
+  // File locks are held by the whole process, so ledgers of one process must not compete for them.
+  private static final Map<Path, Object> PATH_TO_MONITOR = new ConcurrentHashMap<>();
+
+  static class Usage {
+    final long bytesDown;
+    final long bytesUp;
+    final long quotaUnits;
+
+    Usage(long bytesDown, long bytesUp, long quotaUnits) {
+      this.bytesDown = bytesDown;
+      this.bytesUp = bytesUp;
+      this.quotaUnits = quotaUnits;
+    }
+
+    long getRemainingDownloadBytes() {
+      return Math.max(0, DAILY_DOWNLOAD_LIMIT_BYTES - bytesDown);
+    }
+
+    long getRemainingUploadBytes() {
+      return Math.max(0, DAILY_UPLOAD_LIMIT_BYTES - bytesUp);
+    }
+  }
+
+  private final String account;
+  private final File file;
+  private final Clock clock;
+  private final Object monitor;
+  private final Properties ledger;
+  // what was recorded since the last save
+  private final Properties unsaved = new Properties();
+  private long lastSaveMillis;
+
+  QuotaLedger(String account) {
+    this(account, getDefaultLedgerPath().toFile(), Clock.systemUTC());
+  }
+
+  QuotaLedger(String account, File file, Clock clock) {
+    this.account = account;
+    this.file = file;
+    this.clock = clock;
+    monitor = PATH_TO_MONITOR.computeIfAbsent(file.toPath().toAbsolutePath().normalize(), p -> new Object());
+    ledger = new Properties();
+    loadLedgerFromFile();
+    removeOldDays(ledger);
+  }
+
+  synchronized void recordDownload(long bytes) {
+    add(BYTES_DOWN, bytes);
+  }
+
+  synchronized void recordUpload(long bytes) {
+    add(BYTES_UP, bytes);
+  }
+
+  synchronized void recordQuotaUnits(long units) {
+    add(QUOTA_UNITS, units);
+  }
+
+  synchronized Usage getTodaysUsage() {
+    LocalDate today = getToday();
+    return new Usage(get(today, BYTES_DOWN), get(today, BYTES_UP), get(today, QUOTA_UNITS));
+  }
+
+  LocalDate getToday() {
+    return LocalDate.now(clock.withZone(QUOTA_ZONE));
+  }
+
+  long getMillisUntilReset() {
+    ZonedDateTime now = ZonedDateTime.now(clock.withZone(QUOTA_ZONE));
+    ZonedDateTime nextReset = now.toLocalDate().plusDays(1).atStartOfDay(QUOTA_ZONE);
+    return Duration.between(now, nextReset).toMillis();
+  }
+
+  synchronized void flush() {
+    saveLedgerToFile();
+  }
+
+  private void add(String counter, long amount) {
+    String key = getKey(getToday(), counter);
+    increase(ledger, key, amount);
+    increase(unsaved, key, amount);
+    if (clock.millis() - lastSaveMillis >= SAVE_INTERVAL_MILLIS) {
+      saveLedgerToFile();
+    }
+  }
+
+  private static void increase(Properties properties, String key, long amount) {
+    long value = Long.parseLong(properties.getProperty(key, "0")) + amount;
+    properties.setProperty(key, String.valueOf(value));
+  }
+
+  private long get(LocalDate date, String counter) {
+    return Long.parseLong(ledger.getProperty(getKey(date, counter), "0"));
+  }
+
+  private String getKey(LocalDate date, String counter) {
+    return account + "." + date + "." + counter;
+  }
+
+  private void removeOldDays(Properties properties) {
+    LocalDate oldestDayToKeep = getToday().minusDays(DAYS_TO_KEEP);
+    properties.keySet().removeIf(key -> {
+      String[] parts = key.toString().split("\\.");
+      if (parts.length < 3) {
+        return true;
+      }
+      try {
+        return LocalDate.parse(parts[parts.length - 2]).isBefore(oldestDayToKeep);
+      } catch (DateTimeException e) {
+        return true;
+      }
+    });
+  }
+
+  private void loadLedgerFromFile() {
+    if (file.exists()) {
+      synchronized (monitor) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+          FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+          try {
+            ledger.load(Channels.newInputStream(channel));
+          } finally {
+            lock.release();
+          }
+        } catch (IOException e) {
+          LOGGER.log(Level.SEVERE, "Failed to load the quota ledger.", e);
+        }
+      }
+    }
+  }
+
+  private void saveLedgerToFile() {
+    lastSaveMillis = clock.millis();
+    synchronized (monitor) {
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE)) {
+        FileLock lock = channel.lock();
+        try {
+          Properties saved = new Properties();
+          saved.load(Channels.newInputStream(channel));
+          for (String key : unsaved.stringPropertyNames()) {
+            increase(saved, key, Long.parseLong(unsaved.getProperty(key)));
+          }
+          removeOldDays(saved);
+          channel.truncate(0);
+          channel.position(0);
+          saved.store(Channels.newOutputStream(channel), null);
+          unsaved.clear();
+          // what the other processes recorded counts too
+          ledger.clear();
+          ledger.putAll(saved);
+        } finally {
+          lock.release();
+        }
+      } catch (IOException | IllegalArgumentException e) {
+        LOGGER.log(Level.SEVERE, "Failed to save the quota ledger.", e);
+      }
+    }
+  }
+
+  private static Path getDefaultLedgerPath() {
+    String userHome = System.getProperty("user.home");
+    return Paths.get(userHome, "." + Constants.PRODUCT_NAME.toLowerCase() + "-ledger.properties");
+  }
+}
@@ -0,0 +1,72 @@
+package app.unattach.model;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+class QuotaScheduler {
+  enum Priority {
+    // Calls the user is actively waiting for, e.g. loading labels.
+    INTERACTIVE,
+    // Searching and processing of emails.
+    BULK
+  }
+
+  // 250 quota units / user / second
+  static final int UNITS_PER_SECOND = 250;
+  private static final long INTERACTIVE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final TokenBucket bucket;
+  private final LongConsumer unitsListener;
+  private int waitingInteractive;
+
+  QuotaScheduler(LongConsumer unitsListener) {
+    this(new LocalTokenBucket(UNITS_PER_SECOND, System::nanoTime), unitsListener);
+  }
+
+  QuotaScheduler(TokenBucket bucket, LongConsumer unitsListener) {
+    this.bucket = bucket;
+    this.unitsListener = unitsListener;
+  }
+
+  void acquire(GmailOperation operation, Priority priority) throws InterruptedIOException {
+    acquire(operation, 1, priority);
+  }
+
+  void acquire(GmailOperation operation, int count, Priority priority) throws InterruptedIOException {
+    int units = operation.getQuotaUnits() * count;
+    try {
+      acquireUnits(units, priority);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for Gmail quota.");
+    }
+    unitsListener.accept(units);
+  }
+
+  private synchronized void acquireUnits(int units, Priority priority) throws InterruptedException {
+    if (priority == Priority.INTERACTIVE) {
+      ++waitingInteractive;
+    }
+    try {
+      long waitNanos;
+      while ((waitNanos = reserve(units, priority)) > 0) {
+        TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+      }
+    } finally {
+      if (priority == Priority.INTERACTIVE) {
+        --waitingInteractive;
+        notifyAll();
+      }
+    }
+  }
+
+  // Returns 0 if the units were taken, otherwise the number of nanoseconds to wait before trying again.
+  synchronized long reserve(int units, Priority priority) {
+    if (priority == Priority.BULK && waitingInteractive > 0) {
+      // Leave the bucket to the interactive lane, which notifies us once it is done.
+      return INTERACTIVE_WAIT_NANOS;
+    }
+    return bucket.tryTake(units);
+  }
+}
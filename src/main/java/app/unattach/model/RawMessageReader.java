@@ -0,0 +1,142 @@
+package app.unattach.model;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePartBody;
+import org.apache.commons.codec.binary.Base64OutputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+// Reads the response of messages.get in the raw format, decoding the base64 text of the raw message to a stream as it
+// arrives, rather than holding it in memory. The rest of the response is small, and is parsed as usual. The same goes
+// for the data of messages.attachments.get.
+class RawMessageReader {
+  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+  private static final String RAW_FIELD = "raw";
+  private static final String DATA_FIELD = "data";
+
+  // the response without the raw message or data, which is replaced by null
+  private final ByteArrayOutputStream rest = new ByteArrayOutputStream();
+  // the last string of the top-level object, in case it turns out to be a key
+  private final ByteArrayOutputStream lastString = new ByteArrayOutputStream();
+  private final String field;
+  private int depth;
+  private boolean inString;
+  private boolean escaped;
+  private String key;
+  private boolean awaitingValue;
+  private boolean inRaw;
+  private boolean rawFound;
+
+  private RawMessageReader(String field) {
+    this.field = field;
+  }
+
+  // Returns the message without the raw content, which is written to the given stream.
+  static Message read(InputStream in, OutputStream rawOut) throws IOException {
+    Message message = read(in, rawOut, RAW_FIELD, Message.class);
+    // The parser represents the null as a placeholder, which must not end up in an insert.
+    message.setRaw(null);
+    return message;
+  }
+
+  // Returns the attachment without its data, which is written to the given stream.
+  static MessagePartBody readAttachment(InputStream in, OutputStream dataOut) throws IOException {
+    MessagePartBody body = read(in, dataOut, DATA_FIELD, MessagePartBody.class);
+    body.setData(null);
+    return body;
+  }
+
+  private static <T> T read(InputStream in, OutputStream out, String field, Class<T> type) throws IOException {
+    RawMessageReader reader = new RawMessageReader(field);
+    // Gmail may use either base64 alphabet, and the decoder accepts both.
+    try (OutputStream decoder = new Base64OutputStream(new CloseShieldOutputStream(out), false)) {
+      byte[] buffer = new byte[64 * 1024];
+      int length;
+      while ((length = in.read(buffer)) != -1) {
+        reader.scan(buffer, length, decoder);
+      }
+    }
+    if (!reader.rawFound) {
+      throw new IOException("Unable to extract the contents of the email.");
+    }
+    return JSON_FACTORY.fromInputStream(new ByteArrayInputStream(reader.rest.toByteArray()), StandardCharsets.UTF_8,
+        type);
+  }
+
+  private void scan(byte[] buffer, int length, OutputStream decoder) throws IOException {
+    int i = 0;
+    while (i < length) {
+      if (inRaw) {
+        // Base64 has no characters that need escaping, so the raw message ends with the next quote.
+        int end = i;
+        while (end < length && buffer[end] != '"') {
+          ++end;
+        }
+        decoder.write(buffer, i, end - i);
+        if (end < length) {
+          inRaw = false;
+          ++end;
+        }
+        i = end;
+        continue;
+      }
+      byte b = buffer[i++];
+      if (inString) {
+        if (escaped) {
+          escaped = false;
+        } else if (b == '\\') {
+          escaped = true;
+        } else if (b == '"') {
+          inString = false;
+        }
+        if (inString && depth == 1) {
+          lastString.write(b);
+        }
+        rest.write(b);
+        continue;
+      }
+      if (isWhitespace(b)) {
+        rest.write(b);
+        continue;
+      }
+      if (awaitingValue) {
+        awaitingValue = false;
+        if (field.equals(key) && b == '"') {
+          inRaw = true;
+          rawFound = true;
+          rest.write("null".getBytes(StandardCharsets.US_ASCII));
+          continue;
+        }
+      }
+      switch (b) {
+        case '"':
+          inString = true;
+          lastString.reset();
+          break;
+        case '{':
+        case '[':
+          ++depth;
+          break;
+        case '}':
+        case ']':
+          --depth;
+          break;
+        case ':':
+          if (depth == 1) {
+            key = lastString.toString(StandardCharsets.UTF_8);
+            awaitingValue = true;
+          }
+          break;
+      }
+      rest.write(b);
+    }
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+  }
+}
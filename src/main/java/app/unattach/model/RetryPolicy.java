@@ -0,0 +1,49 @@
+package app.unattach.model;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+// see https://developers.google.com/gmail/api/guides/handle-errors
+class RetryPolicy {
+  static final int MAX_ATTEMPTS = 7;
+  private static final long BASE_DELAY_MILLIS = 1000;
+  private static final long MAX_DELAY_MILLIS = 32000;
+  private static final Set<String> RETRYABLE_REASONS =
+      Set.of("backendError", "rateLimitExceeded", "userRateLimitExceeded", "internalError");
+  private static final Set<String> RATE_LIMIT_REASONS = Set.of("rateLimitExceeded", "userRateLimitExceeded");
+
+  private RetryPolicy() {}
+
+  static boolean isRetryable(GoogleJsonError error) {
+    if (ConcurrencyLimiter.isOverload(error.getCode())) {
+      return true;
+    }
+    List<GoogleJsonError.ErrorInfo> errors = error.getErrors();
+    if (errors == null) {
+      return false;
+    }
+    return errors.stream().anyMatch(errorInfo -> RETRYABLE_REASONS.contains(errorInfo.getReason()));
+  }
+
+  // Whether Gmail refused the request because too many were sent, rather than because it failed.
+  static boolean isThrottled(GoogleJsonError error) {
+    if (error.getCode() == 429) {
+      return true;
+    }
+    List<GoogleJsonError.ErrorInfo> errors = error.getErrors();
+    if (errors == null) {
+      return false;
+    }
+    return errors.stream().anyMatch(errorInfo -> RATE_LIMIT_REASONS.contains(errorInfo.getReason()));
+  }
+
+  // Exponential backoff with jitter: the delay for attempt n is between half and all of min(base * 2^(n-1), max).
+  static long getDelayMillis(int attempt, Random random) {
+    long exponentialDelay = BASE_DELAY_MILLIS << Math.min(attempt - 1, 16);
+    long cappedDelay = Math.min(MAX_DELAY_MILLIS, exponentialDelay);
+    return cappedDelay / 2 + (long) (random.nextDouble() * (cappedDelay / 2));
+  }
+}
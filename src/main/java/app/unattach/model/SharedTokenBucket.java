@@ -0,0 +1,145 @@
+package app.unattach.model;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.FileLockInterruptionException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// A token bucket shared by all processes on this machine that use the same account. The state lives in a
+// memory-mapped file, and is only changed while holding an exclusive lock on it. The operating system releases
+// the lock if its holder dies, so a crashed process never blocks the others. An interrupt of a thread that waits for
+// the lock closes the channel, which is then opened again.
+class SharedTokenBucket implements TokenBucket, Closeable {
+  private static final Logger LOGGER = Logger.getLogger(SharedTokenBucket.class.getName());
+  // layout: double availableUnits, long lastRefillNanos (wall clock, since nanoTime differs between processes)
+  private static final int STATE_SIZE = Double.BYTES + Long.BYTES;
+  // File locks are held by the whole process, so threads of one process must not compete for them.
+  private static final Map<Path, Object> PATH_TO_MONITOR = new ConcurrentHashMap<>();
+
+  private final double capacity;
+  private final double unitsPerNano;
+  private final LongSupplier wallClockNanos;
+  private final Path path;
+  private final Object monitor;
+  // guarded by monitor
+  private FileChannel channel;
+  private MappedByteBuffer state;
+  private boolean closed;
+
+  SharedTokenBucket(String account) throws IOException {
+    this(getDefaultBucketPath(account), QuotaScheduler.UNITS_PER_SECOND,
+        () -> TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()));
+  }
+
+  SharedTokenBucket(Path path, int unitsPerSecond, LongSupplier wallClockNanos) throws IOException {
+    this.capacity = unitsPerSecond;
+    this.unitsPerNano = unitsPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+    this.wallClockNanos = wallClockNanos;
+    this.path = path;
+    monitor = PATH_TO_MONITOR.computeIfAbsent(path.toAbsolutePath().normalize(), p -> new Object());
+    synchronized (monitor) {
+      open();
+    }
+  }
+
+  private void open() throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    // A new file is all zeros, which is a bucket that was last refilled long ago, i.e. a full one.
+    state = channel.map(FileChannel.MapMode.READ_WRITE, 0, STATE_SIZE);
+  }
+
+  @Override
+  public long tryTake(int units) {
+    synchronized (monitor) {
+      try {
+        return take(units);
+      } catch (ClosedByInterruptException | FileLockInterruptionException e) {
+        // The interrupted thread is meant to stop, so it isn't kept waiting. It can't reopen the channel either, as
+        // the pending interrupt would close it again, so the next thread to take does that.
+        return 0;
+      } catch (ClosedChannelException e) {
+        // closed by an earlier interrupt, unless the bucket was closed
+        if (closed || !reopen()) {
+          return 0;
+        }
+        try {
+          return take(units);
+        } catch (IOException retryException) {
+          LOGGER.log(Level.WARNING, "Failed to lock the shared quota file.", retryException);
+          return 0;
+        }
+      } catch (IOException e) {
+        // Better to risk going over the quota than to stop working altogether.
+        LOGGER.log(Level.WARNING, "Failed to lock the shared quota file.", e);
+        return 0;
+      }
+    }
+  }
+
+  // Returns false if the file couldn't be opened again.
+  private boolean reopen() {
+    if (closed) {
+      return false;
+    }
+    try {
+      open();
+      return true;
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to reopen the shared quota file.", e);
+      return false;
+    }
+  }
+
+  private long take(int units) throws IOException {
+    FileLock lock = channel.lock(0, STATE_SIZE, false);
+    try {
+      double availableUnits = state.getDouble(0);
+      long lastRefillNanos = state.getLong(Double.BYTES);
+      long nowNanos = wallClockNanos.getAsLong();
+      // Wall clocks can go backwards, in which case nothing is refilled.
+      long elapsedNanos = Math.max(0, nowNanos - lastRefillNanos);
+      availableUnits = Math.min(capacity, availableUnits + elapsedNanos * unitsPerNano);
+      double neededUnits = Math.min(units, capacity);
+      long waitNanos = 0;
+      if (availableUnits >= neededUnits) {
+        availableUnits -= units;
+      } else {
+        waitNanos = Math.max(1, (long) Math.ceil((neededUnits - availableUnits) / unitsPerNano));
+      }
+      state.putDouble(0, availableUnits);
+      state.putLong(Double.BYTES, Math.max(nowNanos, lastRefillNanos));
+      return waitNanos;
+    } finally {
+      lock.release();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (monitor) {
+      closed = true;
+      channel.close();
+    }
+  }
+
+  static Path getDefaultBucketPath(String account) {
+    String userHome = System.getProperty("user.home");
+    String accountHash = DigestUtils.sha256Hex(account.toLowerCase()).substring(0, 16);
+    return Paths.get(userHome, "." + Constants.PRODUCT_NAME.toLowerCase() + "-quota-" + accountHash);
+  }
+}
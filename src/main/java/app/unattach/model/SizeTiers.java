@@ -0,0 +1,39 @@
+package app.unattach.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Splits a search by email size into tiers, from the largest emails to the smallest.
+class SizeTiers {
+  private static final int[] TIER_BOUNDARIES_IN_MB = {25, 10, 5, 2, 1};
+
+  private SizeTiers() {}
+
+  // The tiers are (lower, upper] in bytes, so that together they match the same emails as "size:<min>m".
+  static List<String> getQueries(String query, int minEmailSizeInMb) {
+    List<String> queries = new ArrayList<>();
+    Long upperBytes = null;
+    for (int boundaryInMb : TIER_BOUNDARIES_IN_MB) {
+      if (boundaryInMb <= minEmailSizeInMb) {
+        break;
+      }
+      long lowerBytes = (long) boundaryInMb * Constants.BYTES_IN_MEGABYTE;
+      queries.add(getTierQuery(query, lowerBytes, upperBytes));
+      upperBytes = lowerBytes;
+    }
+    long lowerBytes = (long) minEmailSizeInMb * Constants.BYTES_IN_MEGABYTE;
+    queries.add(getTierQuery(query, lowerBytes, upperBytes));
+    return queries;
+  }
+
+  private static String getTierQuery(String query, long lowerBytes, Long upperBytes) {
+    StringBuilder tierQuery = new StringBuilder(query);
+    if (lowerBytes > 0) {
+      tierQuery.append(" larger:").append(lowerBytes);
+    }
+    if (upperBytes != null) {
+      tierQuery.append(" smaller:").append(upperBytes + 1);
+    }
+    return tierQuery.toString().trim();
+  }
+}
@@ -0,0 +1,319 @@
+package app.unattach.model;
+
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.ParseException;
+import javax.mail.util.SharedFileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// An email as the byte ranges of its downloaded form. Only the headers and the multipart boundaries are scanned, in
+// constant memory, and the parts are read from the file when needed. The slim copy is written by copying the untouched
+// ranges verbatim and splicing in only the parts that changed, rather than by re-serializing the whole MIME tree.
+class SplicedMessage {
+  // Enough of a line to recognise a boundary, which has at most 70 characters.
+  private static final int LINE_PREFIX_BYTES = 256;
+  // Longer header blocks are left to javax.mail.
+  private static final long MAX_HEADER_BYTES = 1024 * 1024;
+
+  static class Part {
+    // Where the line break before the boundary that opens the part starts. It goes together with the part.
+    final long delimiterStart;
+    final long start;
+    final long end;
+    final BodyPart bodyPart;
+    // the parts of a multipart, in order
+    final List<Part> children;
+
+    private Part(long delimiterStart, long start, long end, SplicedBodyPart bodyPart, List<Part> children) {
+      this.delimiterStart = delimiterStart;
+      this.start = start;
+      this.end = end;
+      this.bodyPart = bodyPart;
+      this.children = children;
+    }
+  }
+
+  // Reads its content from the downloaded file, and can bring its headers in line with content that was set.
+  private static class SplicedBodyPart extends MimeBodyPart {
+    SplicedBodyPart(InputStream inputStream) throws MessagingException {
+      super(inputStream);
+    }
+
+    @Override
+    protected void updateHeaders() throws MessagingException {
+      super.updateHeaders();
+    }
+  }
+
+  // Reads lines along with their offsets, keeping only the start of each.
+  private static class LineScanner implements AutoCloseable {
+    private final InputStream inputStream;
+    private final byte[] buffer = new byte[64 * 1024];
+    private int bufferLength;
+    private int bufferPosition;
+    private long offset;
+    final byte[] prefix = new byte[LINE_PREFIX_BYTES];
+    int prefixLength;
+    long lineStart;
+    // without the line break
+    long lineLength;
+    int lineBreakLength;
+
+    LineScanner(SharedFileInputStream raw, long start, long end) {
+      inputStream = raw.newStream(start, end);
+      offset = start;
+    }
+
+    boolean next() throws IOException {
+      lineStart = offset;
+      lineLength = 0;
+      lineBreakLength = 0;
+      prefixLength = 0;
+      boolean lastWasCarriageReturn = false;
+      while (true) {
+        if (bufferPosition == bufferLength) {
+          bufferLength = Math.max(inputStream.read(buffer), 0);
+          bufferPosition = 0;
+          if (bufferLength == 0) {
+            return offset > lineStart;
+          }
+        }
+        byte b = buffer[bufferPosition++];
+        ++offset;
+        if (b == '\n') {
+          if (lastWasCarriageReturn) {
+            --lineLength;
+            prefixLength = (int) Math.min(prefixLength, lineLength);
+          }
+          lineBreakLength = lastWasCarriageReturn ? 2 : 1;
+          return true;
+        }
+        if (prefixLength < prefix.length) {
+          prefix[prefixLength++] = b;
+        }
+        ++lineLength;
+        lastWasCarriageReturn = b == '\r';
+      }
+    }
+
+    long lineEnd() {
+      return lineStart + lineLength;
+    }
+
+    long nextLineStart() {
+      return lineStart + lineLength + lineBreakLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+      inputStream.close();
+    }
+  }
+
+  private final SharedFileInputStream raw;
+  private final long length;
+  // where the blank line that ends the headers of the email starts
+  private final long headersEnd;
+  private final byte[] lineSeparator;
+  private final List<Part> parts;
+  private final Set<BodyPart> removedBodyParts = new HashSet<>();
+  private final Set<BodyPart> changedBodyParts = new HashSet<>();
+
+  private SplicedMessage(SharedFileInputStream raw, long length) throws IOException, MessagingException {
+    this.raw = raw;
+    this.length = length;
+    long blankLineStart = -1;
+    long bodyStart;
+    boolean crlf = true;
+    try (LineScanner lines = new LineScanner(raw, 0, length)) {
+      if (lines.next()) {
+        crlf = lines.lineBreakLength != 1;
+        do {
+          if (lines.lineLength == 0 && lines.lineBreakLength > 0) {
+            blankLineStart = lines.lineStart;
+            break;
+          }
+        } while (lines.nextLineStart() <= MAX_HEADER_BYTES && lines.next());
+      }
+      bodyStart = lines.nextLineStart();
+    }
+    if (blankLineStart < 0) {
+      throw new MessagingException("The headers of the email don't end with a blank line.");
+    }
+    headersEnd = blankLineStart;
+    lineSeparator = (crlf ? "\r\n" : "\n").getBytes(StandardCharsets.US_ASCII);
+    String contentType = new InternetHeaders(raw.newStream(0, bodyStart)).getHeader("Content-Type", null);
+    String boundary = getBoundary(contentType);
+    parts = boundary == null ? Collections.emptyList() : scanMultipart(bodyStart, length, boundary);
+  }
+
+  // Throws a MessagingException if the email isn't structured in a way that can be spliced.
+  static SplicedMessage scan(SharedFileInputStream raw, long length) throws IOException, MessagingException {
+    return new SplicedMessage(raw, length);
+  }
+
+  // The parts of the email, if it's a multipart, in order.
+  List<Part> getParts() {
+    return parts;
+  }
+
+  void remove(BodyPart bodyPart) {
+    removedBodyParts.add(bodyPart);
+  }
+
+  // For parts whose content was set, which are written anew.
+  void markChanged(BodyPart bodyPart) {
+    changedBodyParts.add(bodyPart);
+  }
+
+  void writeTo(OutputStream outputStream, String headerName, String headerValue)
+      throws IOException, MessagingException {
+    copy(outputStream, 0, headersEnd);
+    outputStream.write((headerName + ": " + headerValue).getBytes(StandardCharsets.UTF_8));
+    outputStream.write(lineSeparator);
+    long position = writeParts(outputStream, parts, headersEnd);
+    copy(outputStream, position, length);
+  }
+
+  // Writes everything up to the end of the last part, and returns where that is.
+  private long writeParts(OutputStream outputStream, List<Part> parts, long position)
+      throws IOException, MessagingException {
+    for (Part part : parts) {
+      if (removedBodyParts.contains(part.bodyPart)) {
+        copy(outputStream, position, part.delimiterStart);
+        position = part.end;
+      } else if (changedBodyParts.contains(part.bodyPart)) {
+        copy(outputStream, position, part.start);
+        SplicedBodyPart bodyPart = (SplicedBodyPart) part.bodyPart;
+        bodyPart.updateHeaders();
+        bodyPart.writeTo(outputStream);
+        position = part.end;
+      } else {
+        position = writeParts(outputStream, part.children, position);
+      }
+    }
+    return position;
+  }
+
+  private void copy(OutputStream outputStream, long start, long end) throws IOException {
+    if (start < end) {
+      try (InputStream inputStream = raw.newStream(start, end)) {
+        inputStream.transferTo(outputStream);
+      }
+    }
+  }
+
+  private List<Part> scanMultipart(long bodyStart, long end, String boundary) throws IOException, MessagingException {
+    byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+    List<Part> parts = new ArrayList<>();
+    long partDelimiterStart = -1;
+    long partStart = -1;
+    boolean closed = false;
+    try (LineScanner lines = new LineScanner(raw, bodyStart, end)) {
+      // The line break before a boundary belongs to it, unless it's also the one that ends the previous boundary.
+      long previousLineEnd = -1;
+      while (lines.next()) {
+        int kind = getDelimiterKind(lines, delimiter);
+        if (kind != 0) {
+          long delimiterStart = previousLineEnd >= Math.max(partStart, bodyStart) ? previousLineEnd : lines.lineStart;
+          if (partStart >= 0) {
+            parts.add(createPart(partDelimiterStart, partStart, delimiterStart));
+          }
+          if (kind == 2) {
+            closed = true;
+            break;
+          }
+          partDelimiterStart = delimiterStart;
+          partStart = lines.nextLineStart();
+        }
+        previousLineEnd = lines.lineEnd();
+      }
+    }
+    if (partStart < 0) {
+      throw new MessagingException("Missing start boundary.");
+    }
+    if (!closed) {
+      // Like javax.mail, tolerate a missing end boundary.
+      parts.add(createPart(partDelimiterStart, partStart, end));
+    }
+    return parts;
+  }
+
+  private Part createPart(long delimiterStart, long start, long end) throws IOException, MessagingException {
+    SplicedBodyPart bodyPart = new SplicedBodyPart(raw.newStream(start, end));
+    String boundary = getBoundary(bodyPart.getHeader("Content-Type", null));
+    List<Part> children = boundary == null ? Collections.emptyList() :
+        scanMultipart(findBodyStart(start, end), end, boundary);
+    return new Part(delimiterStart, start, end, bodyPart, children);
+  }
+
+  private long findBodyStart(long start, long end) throws IOException, MessagingException {
+    try (LineScanner lines = new LineScanner(raw, start, end)) {
+      while (lines.next()) {
+        if (lines.lineLength == 0) {
+          return lines.nextLineStart();
+        }
+        if (lines.nextLineStart() - start > MAX_HEADER_BYTES) {
+          throw new MessagingException("The headers of a part are too long.");
+        }
+      }
+    }
+    return end;
+  }
+
+  // Returns 1 for a boundary, 2 for the closing one, and 0 for any other line.
+  private static int getDelimiterKind(LineScanner lines, byte[] delimiter) {
+    if (lines.lineLength > lines.prefixLength || lines.prefixLength < delimiter.length) {
+      return 0;
+    }
+    for (int i = 0; i < delimiter.length; ++i) {
+      if (lines.prefix[i] != delimiter[i]) {
+        return 0;
+      }
+    }
+    int i = delimiter.length;
+    int kind = 1;
+    if (i + 1 < lines.prefixLength && lines.prefix[i] == '-' && lines.prefix[i + 1] == '-') {
+      i += 2;
+      kind = 2;
+    }
+    for (; i < lines.prefixLength; ++i) {
+      if (lines.prefix[i] != ' ' && lines.prefix[i] != '\t') {
+        return 0;
+      }
+    }
+    return kind;
+  }
+
+  // Returns the boundary of a multipart, and null for any other type.
+  private static String getBoundary(String contentType) throws MessagingException {
+    if (contentType == null) {
+      return null;
+    }
+    ContentType type;
+    try {
+      type = new ContentType(contentType);
+    } catch (ParseException e) {
+      if (contentType.trim().toLowerCase().startsWith("multipart/")) {
+        throw e;
+      }
+      // javax.mail doesn't need to parse it either.
+      return null;
+    }
+    if (!type.match("multipart/*")) {
+      return null;
+    }
+    String boundary = type.getParameter("boundary");
+    if (boundary == null) {
+      throw new MessagingException("Missing boundary parameter.");
+    }
+    return boundary;
+  }
+}
@@ -0,0 +1,6 @@
+package app.unattach.model;
+
+interface TokenBucket {
+  // Returns 0 if the units were taken, otherwise the number of nanoseconds to wait before trying again.
+  long tryTake(int units);
+}
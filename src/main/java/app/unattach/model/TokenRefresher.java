@@ -0,0 +1,116 @@
+package app.unattach.model;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.CredentialRefreshListener;
+import com.google.api.client.auth.oauth2.RefreshTokenRequest;
+import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.client.auth.oauth2.TokenResponseException;
+import com.google.api.client.http.GenericUrl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Renews the access token in the background before it expires. Credential.refreshToken() holds the credential's
+// lock during the round-trip to the token server, which would block all requests, so the new token is obtained
+// without the lock and only swapped in under it. A refresh that is still in flight when the refresher is closed, e.g.
+// on sign-out, leaves the credential alone.
+class TokenRefresher implements Closeable {
+  private static final Logger LOGGER = Logger.getLogger(TokenRefresher.class.getName());
+  static final Duration DEFAULT_REFRESH_AHEAD = Duration.ofMinutes(5);
+  private static final Duration RETRY_DELAY = Duration.ofSeconds(30);
+
+  private final Credential credential;
+  private final Duration refreshAhead;
+  private final ScheduledExecutorService executor;
+  // guarded by this
+  private boolean closed;
+
+  TokenRefresher(Credential credential, Duration refreshAhead) {
+    this.credential = credential;
+    this.refreshAhead = refreshAhead;
+    executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "token-refresher");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  void start() {
+    scheduleRefresh();
+  }
+
+  private void scheduleRefresh() {
+    Long expiresInSeconds = credential.getExpiresInSeconds();
+    if (expiresInSeconds == null) {
+      // Refreshing right away would just be answered with another token of unknown expiry, and so on.
+      LOGGER.info("The expiry of the access token is unknown, so leaving its refresh to the requests that need it.");
+      return;
+    }
+    schedule(Math.max(0, TimeUnit.SECONDS.toMillis(expiresInSeconds) - refreshAhead.toMillis()));
+  }
+
+  private void schedule(long delayMillis) {
+    try {
+      executor.schedule(this::refresh, delayMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // closed in the meantime
+    }
+  }
+
+  private synchronized boolean isClosed() {
+    return closed;
+  }
+
+  private void refresh() {
+    if (isClosed()) {
+      return;
+    }
+    try {
+      if (credential.getRefreshToken() == null) {
+        LOGGER.warning("Cannot refresh the access token in the background, because there is no refresh token.");
+        return;
+      }
+      TokenResponse tokenResponse = new RefreshTokenRequest(credential.getTransport(), credential.getJsonFactory(),
+          new GenericUrl(credential.getTokenServerEncodedUrl()), credential.getRefreshToken())
+          .setClientAuthentication(credential.getClientAuthentication())
+          .setRequestInitializer(credential.getRequestInitializer())
+          .execute();
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        credential.setFromTokenResponse(tokenResponse);
+        for (CredentialRefreshListener listener : credential.getRefreshListeners()) {
+          listener.onTokenResponse(credential, tokenResponse);
+        }
+      }
+      LOGGER.info("Refreshed the access token in the background (expires in " +
+          credential.getExpiresInSeconds() + "s).");
+      scheduleRefresh();
+    } catch (TokenResponseException e) {
+      // e.g. the refresh token was revoked, in which case retrying won't help
+      LOGGER.log(Level.SEVERE, "The token server refused to refresh the access token.", e);
+    } catch (IOException e) {
+      // The credential will still refresh itself when a request needs it.
+      LOGGER.log(Level.WARNING, "Failed to refresh the access token in the background. Will retry.", e);
+      schedule(RETRY_DELAY.toMillis());
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.SEVERE, "Failed to refresh the access token in the background.", e);
+    }
+  }
+
+  @Override
+  public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    executor.shutdownNow();
+  }
+}
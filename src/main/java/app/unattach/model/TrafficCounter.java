@@ -0,0 +1,46 @@
+package app.unattach.model;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Counts the bytes exchanged with Gmail over the network, i.e. compressed and with the protocol overhead, next to the
+// bytes of the emails they carried, which is what the daily Gmail transfer limits count.
+class TrafficCounter {
+  private final AtomicLong networkBytesReceived = new AtomicLong();
+  private final AtomicLong networkBytesSent = new AtomicLong();
+  private final AtomicLong emailBytesDownloaded = new AtomicLong();
+  private final AtomicLong emailBytesUploaded = new AtomicLong();
+
+  void onNetworkBytesReceived(long bytes) {
+    networkBytesReceived.addAndGet(bytes);
+  }
+
+  void onNetworkBytesSent(long bytes) {
+    networkBytesSent.addAndGet(bytes);
+  }
+
+  void onEmailBytesDownloaded(long bytes) {
+    emailBytesDownloaded.addAndGet(bytes);
+  }
+
+  void onEmailBytesUploaded(long bytes) {
+    emailBytesUploaded.addAndGet(bytes);
+  }
+
+  long getNetworkBytesReceived() {
+    return networkBytesReceived.get();
+  }
+
+  long getNetworkBytesSent() {
+    return networkBytesSent.get();
+  }
+
+  String getStatistics() {
+    return String.format("received %.1fMB over the network for %.1fMB of emails downloaded, " +
+            "sent %.1fMB for %.1fMB of emails uploaded", toMegaBytes(networkBytesReceived),
+        toMegaBytes(emailBytesDownloaded), toMegaBytes(networkBytesSent), toMegaBytes(emailBytesUploaded));
+  }
+
+  private static double toMegaBytes(AtomicLong bytes) {
+    return (double) bytes.get() / Constants.BYTES_IN_MEGABYTE;
+  }
+}
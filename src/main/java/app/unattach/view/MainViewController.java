@@ -2,13 +2,15 @@ package app.unattach.view;
 
 import app.unattach.controller.Controller;
 import app.unattach.controller.ControllerFactory;
-import app.unattach.controller.LongTask;
+import app.unattach.controller.LongTaskException;
 import app.unattach.model.*;
+import javafx.animation.AnimationTimer;
 import javafx.application.Platform;
 import javafx.beans.Observable;
 import javafx.collections.FXCollections;
 import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
+import javafx.collections.transformation.SortedList;
 import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
@@ -23,6 +25,7 @@ import org.apache.commons.lang3.exception.ExceptionUtils;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -44,6 +47,8 @@ public class MainViewController {
   @FXML
   private CheckMenuItem addMetadataCheckMenuItem;
   @FXML
+  private CheckMenuItem mostSpaceFirstCheckMenuItem;
+  @FXML
   private Menu viewColumnMenu;
   @FXML
   private Menu donationCurrencyMenu;
@@ -72,6 +77,8 @@ public class MainViewController {
   @FXML
   private ListView<String> labelsListView;
   @FXML
+  private CheckBox largestFirstCheckBox;
+  @FXML
   private TextField searchQueryTextField;
   @FXML
   private Button searchButton;
@@ -81,11 +88,15 @@ public class MainViewController {
   private CheckBox backupCheckBox;
   @FXML
   private Button stopSearchButton;
-  private boolean stopSearchButtonPressed;
+  private volatile boolean stopSearchButtonPressed;
+  private boolean searching;
+  private volatile GetEmailMetadataTask searchTask;
 
   // Results view
   private static final String DESELECT_ALL_CAPTION = "Deselect all";
   private static final String SELECT_ALL_CAPTION = "Select all";
+  // Limits the work done in a single frame when many search results arrive at once.
+  private static final int MAX_EMAILS_ADDED_PER_FRAME = 2000;
   @FXML
   private SubView resultsSubView;
   @FXML
@@ -108,12 +119,20 @@ public class MainViewController {
   @FXML
   private Button deleteButton;
   @FXML
+  private Button pauseProcessingButton;
+  @FXML
   private Button stopProcessingButton;
   @FXML
   private ProgressBarWithText processingProgressBarWithText;
   private long bytesProcessed = 0;
   private long allBytesToProcess = 0;
-  private boolean stopProcessingButtonPressed = false;
+  private int numberOfEmailsToProcess = 0;
+  private int processedEmails = 0;
+  private int failedEmails = 0;
+  private volatile boolean stopProcessingButtonPressed = false;
+  private volatile boolean processingPaused = false;
+  private boolean processing;
+  private volatile ProcessingPipeline processingPipeline;
 
   @FXML
   private void initialize() throws IOException {
@@ -186,42 +205,89 @@ public class MainViewController {
 
   @FXML
   private void onSearchButtonPressed() {
-    disableControls();
-    resultsSubView.setText("Results");
-    stopSearchButton.setDisable(false);
+    searching = true;
     stopSearchButtonPressed = false;
+    updateControls();
+    resultsSubView.setText("Results");
     controller.clearPreviousSearch();
-    resultsTable.setItems(FXCollections.emptyObservableList());
-    AtomicInteger currentBatch = new AtomicInteger();
-    AtomicInteger numberOfBatches = new AtomicInteger();
+    // The results are shown as they are found, so that the user can start selecting and processing them while the
+    // search continues.
+    EmailFeed emailFeed = controller.getEmailFeed();
+    ObservableList<Email> observableEmails = FXCollections.observableArrayList(email -> new Observable[]{email});
+    observableEmails.addListener((ListChangeListener<? super Email>) change -> updateResultsCaption());
+    SortedList<Email> sortedEmails = new SortedList<>(observableEmails);
+    sortedEmails.comparatorProperty().bind(resultsTable.comparatorProperty());
+    resultsTable.setItems(sortedEmails);
+    updateResultsCaption();
+    AnimationTimer resultsFeeder = new AnimationTimer() {
+      @Override
+      public void handle(long now) {
+        List<Email> emails = emailFeed.drain(MAX_EMAILS_ADDED_PER_FRAME);
+        if (!emails.isEmpty()) {
+          observableEmails.addAll(emails);
+        }
+      }
+    };
+    resultsFeeder.start();
+    AtomicInteger processedEmails = new AtomicInteger();
+    AtomicInteger numberOfEmails = new AtomicInteger();
+    AtomicBoolean listingComplete = new AtomicBoolean();
 
     Task<Void> task = new Task<>() {
       @Override
       protected Void call() throws Exception {
         updateProgress(0, 1);
         updateMessage("Obtaining email metadata ..");
-        String query = getQuery();
-        LOGGER.info("Obtaining email metadata (query: " + query + ") ..");
-        GetEmailMetadataTask longTask = controller.getSearchTask(query);
-        currentBatch.set(0);
-        numberOfBatches.set(longTask.getNumberOfSteps());
-        updateProgress(currentBatch.get(), numberOfBatches.get());
-        updateMessage(String.format("Obtaining email metadata (%s) ..", getStatusString()));
-        while (!stopSearchButtonPressed && longTask.hasMoreSteps()) {
-          GetEmailMetadataTask.Result result = longTask.takeStep();
-          currentBatch.set(result.currentBatchNumber);
-          updateProgress(currentBatch.get(), numberOfBatches.get());
-          updateMessage(String.format("Obtaining email metadata (%s) ..", getStatusString()));
+        GetEmailMetadataTask longTask;
+        if (basicSearchTab.isSelected() && largestFirstCheckBox.isSelected()) {
+          String query = getBasicQueryWithoutSize();
+          LOGGER.info("Obtaining email metadata, largest emails first (query: " + query + ") ..");
+          longTask = controller.getTieredSearchTask(query, getMinEmailSizeInMb());
+        } else {
+          String query = getQuery();
+          LOGGER.info("Obtaining email metadata (query: " + query + ") ..");
+          longTask = controller.getSearchTask(query);
+        }
+        searchTask = longTask;
+        try {
+          processedEmails.set(0);
+          numberOfEmails.set(longTask.getNumberOfSteps());
+          while (!stopSearchButtonPressed && longTask.hasMoreSteps()) {
+            GetEmailMetadataTask.Result result;
+            try {
+              result = longTask.takeStep();
+            } catch (LongTaskException e) {
+              if (stopSearchButtonPressed) {
+                // The step was cancelled.
+                break;
+              }
+              throw e;
+            }
+            processedEmails.set(result.numberOfProcessedEmails);
+            numberOfEmails.set(result.numberOfEmails);
+            listingComplete.set(result.listingComplete);
+            // Until all emails are listed, the total is only a lower bound.
+            if (listingComplete.get()) {
+              updateProgress(processedEmails.get(), numberOfEmails.get());
+            }
+            updateMessage(String.format("Obtaining email metadata (%s) ..", getStatusString()));
+          }
+          listingComplete.set(!longTask.hasMoreSteps());
+        } finally {
+          searchTask = null;
+          longTask.close();
         }
         return null;
       }
 
       private String getStatusString() {
-        if (numberOfBatches.get() == 0) {
+        if (!listingComplete.get()) {
+          return String.format("completed %d of %d emails listed so far", processedEmails.get(), numberOfEmails.get());
+        } else if (numberOfEmails.get() == 0) {
           return "no emails matched the query";
         } else {
-          return String.format("completed %d of %d batches, %d%%",
-              currentBatch.get(), numberOfBatches.get(), 100 * currentBatch.get() / numberOfBatches.get());
+          return String.format("completed %d of %d emails, %d%%",
+              processedEmails.get(), numberOfEmails.get(), 100 * processedEmails.get() / numberOfEmails.get());
         }
       }
 
@@ -229,17 +295,8 @@ public class MainViewController {
       protected void succeeded() {
         try {
           updateMessage(String.format("Finished obtaining email metadata (%s).", getStatusString()));
-          List<Email> emails = controller.getEmails();
-          ObservableList<Email> observableEmails = FXCollections.observableList(emails, email -> new Observable[]{email});
-          resultsTable.setItems(observableEmails);
-          updateResultsCaption();
-          observableEmails.addListener((ListChangeListener<? super Email>) change -> updateResultsCaption());
-        } catch (Throwable t) {
-          String message = "Failed to process email metadata.";
-          updateMessage(message);
-          reportError(message, t);
         } finally {
-          resetControls();
+          onSearchFinished();
         }
       }
 
@@ -248,7 +305,17 @@ public class MainViewController {
         String message = "Failed to obtain email metadata.";
         updateMessage(message);
         reportError(message, getException());
-        resetControls();
+        onSearchFinished();
+      }
+
+      private void onSearchFinished() {
+        resultsFeeder.stop();
+        for (List<Email> emails; !(emails = emailFeed.drain(Integer.MAX_VALUE)).isEmpty(); ) {
+          observableEmails.addAll(emails);
+        }
+        searching = false;
+        toggleAllEmailsCheckBox.setSelected(false);
+        updateControls();
       }
     };
 
@@ -283,6 +350,11 @@ public class MainViewController {
   @FXML
   private void onStopSearchButtonPressed() {
     stopSearchButtonPressed = true;
+    updateControls();
+    GetEmailMetadataTask task = searchTask;
+    if (task != null) {
+      task.cancel();
+    }
   }
 
   @FXML
@@ -299,22 +371,29 @@ public class MainViewController {
   }
 
   private String getQuery() {
-    StringBuilder query = new StringBuilder();
     if (basicSearchTab.isSelected()) {
-      int minEmailSizeInMb = emailSizeComboBox.getSelectionModel().getSelectedItem().value;
-      query.append(String.format("has:attachment size:%dm", minEmailSizeInMb));
-      ObservableList<String> emailLabels = labelsListView.getSelectionModel().getSelectedItems();
-      if (!emailLabels.isEmpty()) {
-        query.append(" {");
-        query.append(emailLabels.stream().map(label -> String.format("label:\"%s\"", label))
-                .collect(Collectors.joining(" ")));
-        query.append("}");
-      }
+      return String.format("has:attachment size:%dm", getMinEmailSizeInMb()) + getLabelsQuery();
     } else {
-      query = new StringBuilder(searchQueryTextField.getText());
       controller.saveSearchQuery(searchQueryTextField.getText());
+      return searchQueryTextField.getText();
     }
-    return query.toString();
+  }
+
+  private String getBasicQueryWithoutSize() {
+    return "has:attachment" + getLabelsQuery();
+  }
+
+  private int getMinEmailSizeInMb() {
+    return emailSizeComboBox.getSelectionModel().getSelectedItem().value;
+  }
+
+  private String getLabelsQuery() {
+    ObservableList<String> emailLabels = labelsListView.getSelectionModel().getSelectedItems();
+    if (emailLabels.isEmpty()) {
+      return "";
+    }
+    return emailLabels.stream().map(label -> String.format("label:\"%s\"", label))
+        .collect(Collectors.joining(" ", " {", "}"));
   }
 
   @FXML
@@ -363,22 +442,29 @@ public class MainViewController {
   }
 
   private void processEmails(ProcessOption processOption) {
-    List<Email> emailsToProcess = getEmailsToProcess();
-    if (emailsToProcess.isEmpty()) {
+    List<Email> selectedEmails = getEmailsToProcess();
+    if (selectedEmails.isEmpty()) {
       showNoEmailsAlert();
       return;
     }
-    disableControls();
-    stopProcessingButton.setDisable(false);
+    // Each day gets as many emails as fit into the daily Gmail limits.
+    List<List<Email>> days = controller.getProcessingPlan(selectedEmails, processOption,
+        mostSpaceFirstCheckMenuItem.isSelected());
+    processing = true;
     stopProcessingButtonPressed = false;
+    processingPaused = false;
+    updateControls();
     File targetDirectory = getTargetDirectory();
+    numberOfEmailsToProcess = selectedEmails.size();
+    processedEmails = 0;
+    failedEmails = 0;
     bytesProcessed = 0;
-    allBytesToProcess = emailsToProcess.stream().mapToLong(email -> (long) email.getSizeInBytes()).sum();
+    allBytesToProcess = selectedEmails.stream().mapToLong(email -> (long) email.getSizeInBytes()).sum();
     processingProgressBarWithText.progressProperty().setValue(0);
     String filenameSchema = controller.getFilenameSchema();
     ProcessSettings processSettings = new ProcessSettings(processOption, targetDirectory, filenameSchema,
         addMetadataCheckMenuItem.isSelected());
-    processEmail(emailsToProcess, 0, 0, processSettings);
+    processDay(days, 0, processSettings);
   }
 
   private void showNoEmailsAlert() {
@@ -391,62 +477,162 @@ public class MainViewController {
     alert.showAndWait();
   }
 
-  private void processEmail(List<Email> emailsToProcess, int nextEmailIndex, int failed, ProcessSettings processSettings) {
-    if (stopProcessingButtonPressed || nextEmailIndex >= emailsToProcess.size()) {
+  private void processDay(List<List<Email>> days, int day, ProcessSettings processSettings) {
+    if (stopProcessingButtonPressed || day >= days.size()) {
       processingProgressBarWithText.textProperty().setValue(
-          String.format("Processing stopped (%s).", getProcessingStatusString(emailsToProcess, nextEmailIndex, failed)));
-      resetControls();
+          String.format("Processing stopped (%s).", getProcessingStatusString()));
+      processing = false;
+      toggleAllEmailsCheckBox.setSelected(false);
+      updateControls();
       return;
     }
-    Email email = emailsToProcess.get(nextEmailIndex);
-    processingProgressBarWithText.textProperty().setValue(
-        String.format("Processing selected emails (%s) ..", getProcessingStatusString(emailsToProcess, nextEmailIndex, failed)));
+    updateProcessingText();
 
     Task<Void> task = new Task<>() {
       @Override
       protected Void call() throws Exception {
-        LongTask<ProcessEmailResult> longTask = controller.getProcessTask(email, processSettings);
-        while (!stopProcessingButtonPressed && longTask.hasMoreSteps()) {
-          longTask.takeStep();
+        try (ProcessingPipeline pipeline = controller.getProcessingPipeline(processSettings, new ProgressListener())) {
+          processingPipeline = pipeline;
+          if (processingPaused) {
+            pipeline.pause();
+          }
+          for (Email email : days.get(day)) {
+            if (stopProcessingButtonPressed) {
+              break;
+            }
+            pipeline.submit(email);
+          }
+          pipeline.awaitCompletion();
+        } finally {
+          processingPipeline = null;
         }
         return null;
       }
 
       @Override
       protected void succeeded() {
-        bytesProcessed += email.getSizeInBytes();
-        processingProgressBarWithText.progressProperty().setValue(1.0 * bytesProcessed / allBytesToProcess);
-        resultsTable.refresh();
-        processEmail(emailsToProcess, nextEmailIndex + 1, failed, processSettings);
+        if (day + 1 < days.size() && !stopProcessingButtonPressed) {
+          waitForQuotaReset(days, day + 1, processSettings);
+        } else {
+          processDay(days, days.size(), processSettings);
+        }
       }
 
       @Override
       protected void failed() {
-        email.setStatus(EmailStatus.FAILED);
-        email.setNote(getException().getMessage());
-        resultsTable.refresh();
         reportError("Failed to process selected emails.", getException());
-        processEmail(emailsToProcess, nextEmailIndex + 1, failed + 1, processSettings);
+        stopProcessingButtonPressed = true;
+        processDay(days, day, processSettings);
       }
     };
 
     new Thread(task).start();
   }
 
-  private String getProcessingStatusString(List<Email> emailsToProcess, int nextEmailIndex, int failed) {
+  // Called on the pipeline's threads.
+  private class ProgressListener implements ProcessingPipeline.Listener {
+    @Override
+    public void onEmailProcessed(Email email) {
+      Platform.runLater(() -> {
+        email.setStatus(EmailStatus.PROCESSED);
+        ++processedEmails;
+        bytesProcessed += email.getSizeInBytes();
+        updateProcessingProgress();
+      });
+    }
+
+    @Override
+    public void onEmailFailed(Email email, Throwable t) {
+      Platform.runLater(() -> {
+        ++failedEmails;
+        email.setStatus(EmailStatus.FAILED);
+        email.setNote(t.getMessage());
+        updateProcessingProgress();
+        reportError("Failed to process selected emails.", t);
+      });
+    }
+
+    private void updateProcessingProgress() {
+      processingProgressBarWithText.progressProperty().setValue(1.0 * bytesProcessed / allBytesToProcess);
+      if (!stopProcessingButtonPressed) {
+        updateProcessingText();
+      }
+      resultsTable.refresh();
+    }
+  }
+
+  private void waitForQuotaReset(List<List<Email>> days, int nextDay, ProcessSettings processSettings) {
+    Task<Void> task = new Task<>() {
+      @Override
+      protected Void call() throws Exception {
+        // Leave a minute of margin, since the clocks may not be exactly in sync.
+        long resumeMillis = System.currentTimeMillis() + controller.getMillisUntilQuotaReset() + 60000;
+        LOGGER.info("Reached the daily Gmail limits. Waiting until " + new Date(resumeMillis) + " ..");
+        while (!stopProcessingButtonPressed && System.currentTimeMillis() < resumeMillis) {
+          long remainingMinutes = (resumeMillis - System.currentTimeMillis()) / 60000;
+          Platform.runLater(() -> processingProgressBarWithText.textProperty().setValue(
+              String.format("Reached the daily Gmail limits, resuming in %dh %02dm (%s) ..",
+                  remainingMinutes / 60, remainingMinutes % 60, getProcessingStatusString())));
+          Thread.sleep(1000);
+        }
+        return null;
+      }
+
+      @Override
+      protected void succeeded() {
+        processDay(days, nextDay, processSettings);
+      }
+
+      @Override
+      protected void failed() {
+        reportError("Failed to wait for the daily Gmail limits to reset.", getException());
+        stopProcessingButtonPressed = true;
+        processDay(days, nextDay, processSettings);
+      }
+    };
+
+    new Thread(task).start();
+  }
+
+  private String getProcessingStatusString() {
     return String.format("processed %d of %d, %dMB / %dMB, %d%% by size, %d failed",
-        nextEmailIndex - failed, emailsToProcess.size(), toMegaBytes(bytesProcessed), toMegaBytes(allBytesToProcess),
-        100 * bytesProcessed / allBytesToProcess, failed);
+        processedEmails, numberOfEmailsToProcess, toMegaBytes(bytesProcessed), toMegaBytes(allBytesToProcess),
+        100 * bytesProcessed / allBytesToProcess, failedEmails);
   }
 
   private static int toMegaBytes(long bytes) {
     return (int) (bytes / Constants.BYTES_IN_MEGABYTE);
   }
 
+  private void updateProcessingText() {
+    String format = processingPaused ? "Processing paused (%s)." : "Processing selected emails (%s) ..";
+    processingProgressBarWithText.textProperty().setValue(String.format(format, getProcessingStatusString()));
+  }
+
+  // Pausing aborts the downloads in flight, which start over once resumed.
+  @FXML
+  private void onPauseProcessingButtonPressed() {
+    processingPaused = !processingPaused;
+    ProcessingPipeline pipeline = processingPipeline;
+    if (pipeline != null) {
+      if (processingPaused) {
+        pipeline.pause();
+      } else {
+        pipeline.resume();
+      }
+    }
+    updateProcessingText();
+    updateControls();
+  }
+
   @FXML
   private void onStopProcessingButtonPressed() {
-    stopProcessingButton.setDisable(true);
     stopProcessingButtonPressed = true;
+    updateControls();
+    ProcessingPipeline pipeline = processingPipeline;
+    if (pipeline != null) {
+      pipeline.stop();
+    }
   }
 
   private List<Email> getEmailsToProcess() {
@@ -454,35 +640,22 @@ public class MainViewController {
         .filter(email -> email.getStatus() == EmailStatus.TO_PROCESS).collect(Collectors.toList());
   }
 
-  private void disableControls() {
-    signOutMenuItem.setDisable(true);
-    searchButton.setDisable(true);
-    stopSearchButton.setDisable(true);
-    resultsTable.setEditable(false);
-    toggleAllEmailsCheckBox.setDisable(true);
-    targetDirectoryTextField.setDisable(true);
-    browseButton.setDisable(true);
-    backupCheckBox.setDisable(true);
-    downloadButton.setDisable(true);
-    downloadAndDeleteButton.setDisable(true);
-    deleteButton.setDisable(true);
-    stopProcessingButton.setDisable(true);
-  }
-
-  private void resetControls() {
-    signOutMenuItem.setDisable(false);
-    searchButton.setDisable(false);
-    stopSearchButton.setDisable(true);
-    resultsTable.setEditable(true);
-    toggleAllEmailsCheckBox.setDisable(false);
-    toggleAllEmailsCheckBox.setSelected(false);
-    targetDirectoryTextField.setDisable(false);
-    browseButton.setDisable(false);
-    backupCheckBox.setDisable(false);
-    downloadButton.setDisable(false);
-    downloadAndDeleteButton.setDisable(false);
-    deleteButton.setDisable(false);
-    stopProcessingButton.setDisable(true);
+  // Searching and processing can run at the same time, e.g. to process the largest emails found so far.
+  private void updateControls() {
+    signOutMenuItem.setDisable(searching || processing);
+    searchButton.setDisable(searching || processing);
+    stopSearchButton.setDisable(!searching || stopSearchButtonPressed);
+    resultsTable.setEditable(!processing);
+    toggleAllEmailsCheckBox.setDisable(processing);
+    targetDirectoryTextField.setDisable(processing);
+    browseButton.setDisable(processing);
+    backupCheckBox.setDisable(processing);
+    downloadButton.setDisable(processing);
+    downloadAndDeleteButton.setDisable(processing);
+    deleteButton.setDisable(processing);
+    pauseProcessingButton.setDisable(!processing || stopProcessingButtonPressed);
+    pauseProcessingButton.setText(processingPaused ? "Resume" : "Pause");
+    stopProcessingButton.setDisable(!processing || stopProcessingButtonPressed);
   }
 
   @FXML
@@ -0,0 +1,41 @@
+package app.unattach.model;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdaptiveBatchSizeTest {
+  private final AdaptiveBatchSize batchSize = new AdaptiveBatchSize();
+
+  @Test
+  void growsUpToMaximumWhileFast() {
+    for (int i = 0; i < 20; ++i) {
+      batchSize.onBatchCompleted(batchSize.get(), 200, 10000, 0);
+    }
+    assertEquals(AdaptiveBatchSize.MAX_SIZE, batchSize.get());
+  }
+
+  @Test
+  void doesNotGrowOnPartialBatches() {
+    batchSize.onBatchCompleted(5, 200, 1000, 0);
+    assertEquals(AdaptiveBatchSize.INITIAL_SIZE, batchSize.get());
+  }
+
+  @Test
+  void halvesOnThrottling() {
+    batchSize.onBatchCompleted(40, 200, 10000, 3);
+    assertEquals(20, batchSize.get());
+    for (int i = 0; i < 10; ++i) {
+      batchSize.onBatchCompleted(batchSize.get(), 200, 10000, 1);
+    }
+    assertEquals(AdaptiveBatchSize.MIN_SIZE, batchSize.get());
+  }
+
+  @Test
+  void shrinksOnSlowOrLargeBatches() {
+    batchSize.onBatchCompleted(40, 10000, 10000, 0);
+    assertEquals(30, batchSize.get());
+    batchSize.onBatchCompleted(30, 200, 10 * Constants.BYTES_IN_MEGABYTE, 0);
+    assertEquals(22, batchSize.get());
+  }
+}
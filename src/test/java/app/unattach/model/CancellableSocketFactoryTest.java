@@ -0,0 +1,181 @@
+package app.unattach.model;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CancellableSocketFactoryTest {
+  private ServerSocket server;
+  private final List<Socket> accepted = new ArrayList<>();
+  private final CountDownLatch connected = new CountDownLatch(1);
+  private NetHttpTransport transport;
+  private GenericUrl url;
+
+  // Accepts connections, but never responds, like a server that stalls in the middle of a large download.
+  @BeforeEach
+  void startServer() throws IOException {
+    server = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(() -> {
+      try {
+        while (true) {
+          Socket socket = server.accept();
+          synchronized (accepted) {
+            accepted.add(socket);
+          }
+          connected.countDown();
+        }
+      } catch (IOException ignored) {}
+    });
+    acceptor.setDaemon(true);
+    acceptor.start();
+    transport = new NetHttpTransport.Builder()
+        .setConnectionFactory(new CancellableConnectionFactory((SSLSocketFactory) SSLSocketFactory.getDefault()))
+        .build();
+    url = new GenericUrl("https://localhost:" + server.getLocalPort() + "/download");
+  }
+
+  @AfterEach
+  void stopServer() throws IOException {
+    server.close();
+    synchronized (accepted) {
+      for (Socket socket : accepted) {
+        socket.close();
+      }
+    }
+  }
+
+  private void get() throws IOException {
+    HttpRequest request = transport.createRequestFactory().buildGetRequest(url);
+    request.setReadTimeout(60000);
+    request.execute();
+  }
+
+  @Test
+  void cancellationAbortsRequestInFlight() throws InterruptedException {
+    Cancellation cancellation = new Cancellation();
+    Thread canceller = new Thread(() -> {
+      try {
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+      } catch (InterruptedException ignored) {}
+      cancellation.cancel();
+    });
+    canceller.start();
+    long startMillis = System.currentTimeMillis();
+    assertThrows(IOException.class, () -> cancellation.call(() -> {
+      get();
+      return null;
+    }));
+    // long before the read timeout
+    assertTrue(System.currentTimeMillis() - startMillis < 5000);
+    canceller.join();
+  }
+
+  @Test
+  void cancellationAbortsRequestOnReusedConnection() throws Exception {
+    char[] password = "changeit".toCharArray();
+    KeyStore keyStore = KeyStore.getInstance("PKCS12");
+    try (InputStream in = getClass().getResourceAsStream("/localhost.p12")) {
+      keyStore.load(in, password);
+    }
+    KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagerFactory.init(keyStore, password);
+    TrustManagerFactory trustManagerFactory =
+        TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trustManagerFactory.init(keyStore);
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+    // Answers the first request, and stalls on the second one.
+    List<Integer> clientPorts = new ArrayList<>();
+    CountDownLatch stalled = new CountDownLatch(1);
+    CountDownLatch released = new CountDownLatch(1);
+    HttpsServer httpsServer = HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    httpsServer.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+    httpsServer.createContext("/", exchange -> {
+      synchronized (clientPorts) {
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+      }
+      if (exchange.getRequestURI().getPath().equals("/stall")) {
+        stalled.countDown();
+        try {
+          released.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ignored) {}
+      }
+      byte[] body = "ok".getBytes(StandardCharsets.US_ASCII);
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    httpsServer.start();
+    try {
+      NetHttpTransport httpsTransport = new NetHttpTransport.Builder()
+          .setConnectionFactory(new CancellableConnectionFactory(
+              new CountingSocketFactory(sslContext.getSocketFactory(), new TrafficCounter())))
+          .build();
+      String baseUrl = "https://localhost:" + httpsServer.getAddress().getPort();
+      assertEquals("ok", new Cancellation().call(() -> httpsTransport.createRequestFactory()
+          .buildGetRequest(new GenericUrl(baseUrl + "/fast")).execute().parseAsString()));
+      Cancellation cancellation = new Cancellation();
+      Thread canceller = new Thread(() -> {
+        try {
+          assertTrue(stalled.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException ignored) {}
+        cancellation.cancel();
+      });
+      canceller.start();
+      long startMillis = System.currentTimeMillis();
+      assertThrows(IOException.class, () -> cancellation.call(() -> {
+        HttpRequest request = httpsTransport.createRequestFactory().buildGetRequest(new GenericUrl(baseUrl + "/stall"));
+        request.setReadTimeout(60000);
+        return request.execute().parseAsString();
+      }));
+      assertTrue(System.currentTimeMillis() - startMillis < 5000);
+      canceller.join();
+      synchronized (clientPorts) {
+        // The stalled request went over the connection of the first one.
+        assertEquals(2, clientPorts.size());
+        assertEquals(clientPorts.get(0), clientPorts.get(1));
+      }
+    } finally {
+      released.countDown();
+      httpsServer.stop(0);
+    }
+  }
+
+  @Test
+  void cancelledWorkOpensNoConnections() throws InterruptedException {
+    Cancellation cancellation = new Cancellation();
+    cancellation.cancel();
+    assertThrows(IOException.class, () -> cancellation.call(() -> {
+      get();
+      return null;
+    }));
+    assertFalse(connected.await(100, TimeUnit.MILLISECONDS));
+  }
+}
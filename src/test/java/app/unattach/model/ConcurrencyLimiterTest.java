@@ -0,0 +1,107 @@
+package app.unattach.model;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrencyLimiterTest {
+  private final AtomicLong nanos = new AtomicLong(1000);
+  private final ConcurrencyLimiter limiter = new ConcurrencyLimiter(nanos::get);
+
+  @Test
+  void overloadHalvesLimit() {
+    assertEquals(4, limiter.getLimit());
+    nanos.addAndGet(10);
+    limiter.onOverload(nanos.get());
+    assertEquals(2, limiter.getLimit());
+    nanos.addAndGet(10);
+    limiter.onOverload(nanos.get());
+    limiter.onOverload(nanos.get());
+    assertEquals(1, limiter.getLimit());
+  }
+
+  @Test
+  void overloadOfRequestsStartedBeforeLastDecreaseIsIgnored() {
+    long startNanos = nanos.addAndGet(10);
+    nanos.addAndGet(10);
+    limiter.onOverload(startNanos);
+    limiter.onOverload(startNanos);
+    assertEquals(2, limiter.getLimit());
+  }
+
+  @Test
+  void throttledResponseLowersLimit() {
+    nanos.addAndGet(10);
+    assertThrows(HttpResponseException.class, () -> limiter.execute("kind", () -> {
+      throw new HttpResponseException.Builder(429, "Too Many Requests", new HttpHeaders()).build();
+    }));
+    assertEquals(2, limiter.getLimit());
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  void otherErrorsKeepLimit() {
+    assertThrows(IOException.class, () -> limiter.execute("kind", () -> {
+      throw new IOException("not found");
+    }));
+    assertEquals(4, limiter.getLimit());
+  }
+
+  @Test
+  void latencySpikeLowersLimit() {
+    for (int i = 0; i < 20; ++i) {
+      long start = nanos.get();
+      limiter.onSuccess("kind", 0, start, nanos.addAndGet(100));
+    }
+    assertEquals(4, limiter.getLimit());
+    long start = nanos.get();
+    limiter.onSuccess("kind", 0, start, nanos.addAndGet(1000));
+    assertEquals(2, limiter.getLimit());
+    assertTrue(limiter.getStatistics().contains("latencySpikes=1"));
+  }
+
+  @Test
+  void largerCallsAreNotLatencySpikes() {
+    for (int i = 0; i < 20; ++i) {
+      long start = nanos.get();
+      limiter.onSuccess("kind", 10 * 1024, start, nanos.addAndGet(100));
+    }
+    long start = nanos.get();
+    limiter.onSuccess("kind", 10 * 1024 * 1024, start, nanos.addAndGet(1000));
+    assertEquals(4, limiter.getLimit());
+    assertTrue(limiter.getStatistics().contains("latencySpikes=0"));
+  }
+
+  @Test
+  void sizesWithinAFactorOfFourShareABucket() {
+    assertEquals(0, ConcurrencyLimiter.getSizeBucket(0));
+    assertEquals(0, ConcurrencyLimiter.getSizeBucket(64 * 1024 - 1));
+    assertEquals(1, ConcurrencyLimiter.getSizeBucket(64 * 1024));
+    assertEquals(1, ConcurrencyLimiter.getSizeBucket(256 * 1024 - 1));
+    assertEquals(2, ConcurrencyLimiter.getSizeBucket(256 * 1024));
+    assertEquals(3, ConcurrencyLimiter.getSizeBucket(1024 * 1024));
+  }
+
+  @Test
+  void saturatedLimitGrowsAdditively() throws IOException {
+    for (int i = 0; i < 8; ++i) {
+      executeNested(limiter.getLimit());
+    }
+    assertEquals(5, limiter.getLimit());
+  }
+
+  private void executeNested(int depth) throws IOException {
+    limiter.execute("kind", () -> {
+      nanos.addAndGet(100);
+      if (depth > 1) {
+        executeNested(depth - 1);
+      }
+      return null;
+    });
+  }
+}
@@ -0,0 +1,70 @@
+package app.unattach.model;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CountingSocketFactoryTest {
+  private final TrafficCounter trafficCounter = new TrafficCounter();
+  private final CountingSocketFactory socketFactory =
+      new CountingSocketFactory((SSLSocketFactory) SSLSocketFactory.getDefault(), trafficCounter);
+  private ServerSocket server;
+
+  // Echoes whatever it receives.
+  @BeforeEach
+  void startServer() throws IOException {
+    server = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(() -> {
+      try (Socket socket = server.accept()) {
+        socket.getInputStream().transferTo(socket.getOutputStream());
+      } catch (IOException ignored) {}
+    });
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  @AfterEach
+  void stopServer() throws IOException {
+    server.close();
+  }
+
+  @Test
+  void countsBytesInBothDirections() throws IOException {
+    try (Socket socket = socketFactory.createSocket()) {
+      socket.connect(server.getLocalSocketAddress());
+      OutputStream out = socket.getOutputStream();
+      out.write(new byte[1000]);
+      out.write(1);
+      out.flush();
+      InputStream in = socket.getInputStream();
+      assertEquals(1000, in.readNBytes(1000).length);
+      assertEquals(1, in.read());
+    }
+    assertEquals(1001, trafficCounter.getNetworkBytesSent());
+    assertEquals(1001, trafficCounter.getNetworkBytesReceived());
+  }
+
+  @Test
+  void countsTheBytesUnderneathTls() throws IOException {
+    try (SSLSocket socket = (SSLSocket) socketFactory.createSocket("localhost", server.getLocalPort())) {
+      socket.setSoTimeout(1000);
+      // The echoed client hello isn't a valid server hello.
+      assertThrows(IOException.class, socket::startHandshake);
+    } catch (SocketTimeoutException ignored) {}
+    // at least the client hello, and its echo
+    assertTrue(trafficCounter.getNetworkBytesSent() > 0);
+    assertTrue(trafficCounter.getNetworkBytesReceived() > 0);
+  }
+}
@@ -0,0 +1,38 @@
+package app.unattach.model;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DownloadDeadlinesTest {
+  private static final long MB = Constants.BYTES_IN_MEGABYTE;
+
+  private final DownloadDeadlines deadlines = new DownloadDeadlines();
+
+  @Test
+  void deadlinesScaleWithSize() {
+    assertTrue(deadlines.getHedgeAfterMillis(20 * MB) > deadlines.getHedgeAfterMillis(10 * 1024));
+    assertTrue(deadlines.getTimeoutMillis(20 * MB) > deadlines.getTimeoutMillis(10 * 1024));
+    assertTrue(deadlines.getTimeoutMillis(1000 * MB) <= DownloadDeadlines.MAX_TIMEOUT_MILLIS);
+  }
+
+  @Test
+  void learnsThroughput() {
+    long before = deadlines.getExpectedMillis(10 * MB);
+    for (int i = 0; i < 50; ++i) {
+      // 10 MB/s
+      deadlines.onCompleted(10 * MB, 2000);
+    }
+    long after = deadlines.getExpectedMillis(10 * MB);
+    assertTrue(after < before / 4, before + " -> " + after);
+  }
+
+  @Test
+  void hedgesAfterHighPercentileOfObservedLatency() {
+    for (int i = 0; i < 100; ++i) {
+      deadlines.onCompleted(1024, i < 90 ? 1000 : 5000);
+    }
+    long hedgeAfterMillis = deadlines.getHedgeAfterMillis(1024);
+    assertTrue(hedgeAfterMillis >= 4000 && hedgeAfterMillis <= 6000, String.valueOf(hedgeAfterMillis));
+  }
+}
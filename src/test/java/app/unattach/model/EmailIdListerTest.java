@@ -0,0 +1,65 @@
+package app.unattach.model;
+
+import com.google.api.services.gmail.model.ListMessagesResponse;
+import com.google.api.services.gmail.model.Message;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmailIdListerTest {
+  private static EmailIdLister.PageLister createShard(List<List<String>> pages) {
+    return pageToken -> {
+      int page = pageToken == null ? 0 : Integer.parseInt(pageToken);
+      List<Message> messages = pages.get(page).stream().map(id -> new Message().setId(id))
+          .collect(Collectors.toList());
+      String nextPageToken = page + 1 < pages.size() ? String.valueOf(page + 1) : null;
+      return new ListMessagesResponse().setMessages(messages).setNextPageToken(nextPageToken);
+    };
+  }
+
+  private static List<String> takeAll(EmailIdLister lister) throws IOException, InterruptedException {
+    List<String> emailIds = new ArrayList<>();
+    while (!lister.isComplete()) {
+      lister.awaitListed(1000);
+      emailIds.addAll(lister.takeListed());
+    }
+    return emailIds;
+  }
+
+  @Test
+  void mergesShardsWithoutDuplicates() throws IOException, InterruptedException {
+    // The shards overlap at their boundaries.
+    EmailIdLister lister = EmailIdLister.start(List.of(
+        createShard(List.of(List.of("a", "b"), List.of("c"))),
+        createShard(List.of(List.of("c", "d"), List.of("e", "f"))),
+        createShard(List.of(List.of("f", "g")))), EmailIdLister.MAX_CONCURRENT_SHARDS);
+    List<String> emailIds = takeAll(lister);
+    assertEquals(7, emailIds.size());
+    assertEquals(Set.of("a", "b", "c", "d", "e", "f", "g"), new HashSet<>(emailIds));
+  }
+
+  @Test
+  void failureOfOneShardIsReported() {
+    EmailIdLister lister = EmailIdLister.start(List.of(
+        createShard(List.of(List.of("a"))),
+        pageToken -> {
+          throw new IOException("Listing failed.");
+        }), EmailIdLister.MAX_CONCURRENT_SHARDS);
+    IOException exception = assertThrows(IOException.class, () -> takeAll(lister));
+    assertEquals("Listing failed.", exception.getMessage());
+  }
+
+  @Test
+  void unexpectedFailureIsReported() {
+    IllegalStateException cause = new IllegalStateException("Unexpected response.");
+    EmailIdLister lister = EmailIdLister.start(pageToken -> {
+      throw cause;
+    });
+    IOException exception = assertThrows(IOException.class, () -> takeAll(lister));
+    assertSame(cause, exception.getCause());
+  }
+}
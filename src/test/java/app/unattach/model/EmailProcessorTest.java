@@ -0,0 +1,67 @@
+package app.unattach.model;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmailProcessorTest {
+  private static class CountingBodyPart extends MimeBodyPart {
+    private int numberOfDecodings;
+
+    @Override
+    public Object getContent() throws IOException, MessagingException {
+      ++numberOfDecodings;
+      return super.getContent();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException, MessagingException {
+      ++numberOfDecodings;
+      return super.getInputStream();
+    }
+  }
+
+  @Test
+  void decodesEachAttachmentOnce() throws IOException, MessagingException {
+    MimeBodyPart text = new MimeBodyPart();
+    text.setText("Hello.");
+    MimeBodyPart alternative = new MimeBodyPart();
+    alternative.setContent(new MimeMultipart("alternative", text));
+    CountingBodyPart attachment = new CountingBodyPart();
+    attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(new byte[] {1, 2, 3}, "application/pdf")));
+    attachment.setFileName("a.pdf");
+    MimeMessage mimeMessage = new MimeMessage(Session.getInstance(new Properties()));
+    mimeMessage.setContent(new MimeMultipart(alternative, attachment));
+    mimeMessage.saveChanges();
+    File directory = Files.createTempDirectory("email-processor-test").toFile();
+    try {
+      Email email = new Email("abc", "abc", Collections.emptyList(), "from@example.com", "Test", 0, 100);
+      ProcessSettings processSettings =
+          new ProcessSettings(new ProcessOption(false, true, true), directory, "${ATTACHMENT_NAME}", true);
+      assertEquals(Collections.singleton("a.pdf"), EmailProcessor.process(email, mimeMessage, processSettings));
+      assertEquals(1, attachment.numberOfDecodings);
+      assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(new File(directory, "a.pdf").toPath()));
+      Multipart mixed = (Multipart) mimeMessage.getContent();
+      assertEquals(1, mixed.getCount());
+      assertTrue(text.getContent().toString().contains(" - a.pdf (filename: a.pdf)"));
+    } finally {
+      FileUtils.deleteDirectory(directory);
+    }
+  }
+}
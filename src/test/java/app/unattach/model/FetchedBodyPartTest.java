@@ -0,0 +1,80 @@
+package app.unattach.model;
+
+import com.google.api.services.gmail.model.MessagePart;
+import com.google.api.services.gmail.model.MessagePartBody;
+import com.google.api.services.gmail.model.MessagePartHeader;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import javax.mail.MessagingException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FetchedBodyPartTest {
+  private static MessagePart getMessagePart(String contentType, String disposition, String attachmentId,
+                                            MessagePart... parts) {
+    List<MessagePartHeader> headers = new ArrayList<>();
+    headers.add(new MessagePartHeader().setName("Content-Type").setValue(contentType));
+    if (disposition != null) {
+      headers.add(new MessagePartHeader().setName("Content-Disposition").setValue(disposition));
+    }
+    return new MessagePart().setMimeType(contentType.split(";")[0]).setHeaders(headers).setBody(new MessagePartBody().setAttachmentId(attachmentId).setSize(3))
+        .setParts(parts.length == 0 ? null : Arrays.asList(parts));
+  }
+
+  @Test
+  void savesTheFetchedAttachments() throws IOException, MessagingException {
+    MessagePart payload = getMessagePart("multipart/mixed; boundary=\"outer\"", null, null,
+        getMessagePart("multipart/alternative; boundary=\"inner\"", null, null,
+            getMessagePart("text/plain", null, null),
+            getMessagePart("text/html", null, null)),
+        getMessagePart("image/png; name=\"inline.png\"", "inline", "inline-id"),
+        getMessagePart("application/pdf", "attachment; filename=\"a.pdf\"", "a-id"));
+    List<FetchedBodyPart> bodyParts = FetchedBodyPart.getBodyParts(payload);
+    assertEquals(5, bodyParts.size());
+    assertTrue(bodyParts.get(1).isMimeType("text/plain"));
+    assertTrue(EmailProcessor.isAttachment(bodyParts.get(3)));
+    FetchedBodyPart attachment = bodyParts.get(4);
+    assertEquals("a-id", attachment.attachmentId);
+    assertTrue(EmailProcessor.isAttachment(attachment));
+    File directory = Files.createTempDirectory("fetched-body-part-test").toFile();
+    try {
+      bodyParts.get(3).contentFile = new File(directory, "inline.tmp");
+      Files.write(bodyParts.get(3).contentFile.toPath(), new byte[] {4, 5});
+      attachment.contentFile = new File(directory, "a.tmp");
+      Files.write(attachment.contentFile.toPath(), new byte[] {1, 2, 3});
+      Email email = new Email("abc", "abc", Collections.emptyList(), "from@example.com", "Test", 0, 100);
+      ProcessSettings processSettings =
+          new ProcessSettings(new ProcessOption(false, true, false), directory, "${ATTACHMENT_NAME}", false);
+      assertEquals(Arrays.asList("a.pdf", "inline.png"),
+          new ArrayList<>(EmailProcessor.process(email, bodyParts, processSettings)));
+      assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(new File(directory, "a.pdf").toPath()));
+      attachment.deleteContentFile();
+      assertNull(attachment.contentFile);
+      assertFalse(new File(directory, "a.tmp").exists());
+    } finally {
+      FileUtils.deleteDirectory(directory);
+    }
+  }
+
+  @Test
+  void treatsAForwardedEmailAsASinglePart() throws MessagingException {
+    MessagePart payload = getMessagePart("multipart/mixed; boundary=\"outer\"", null, null,
+        getMessagePart("text/plain", null, null),
+        getMessagePart("message/rfc822", "attachment; filename=\"forwarded.eml\"", "forwarded-id",
+            getMessagePart("multipart/mixed; boundary=\"forwarded\"", null, null,
+                getMessagePart("text/plain", null, null),
+                getMessagePart("application/pdf", "attachment; filename=\"b.pdf\"", "b-id"))));
+    List<FetchedBodyPart> bodyParts = FetchedBodyPart.getBodyParts(payload);
+    assertEquals(2, bodyParts.size());
+    assertTrue(bodyParts.get(1).isMimeType("message/rfc822"));
+    assertEquals("forwarded-id", bodyParts.get(1).attachmentId);
+  }
+}
@@ -0,0 +1,151 @@
+package app.unattach.model;
+
+import app.unattach.controller.LongTaskException;
+import com.google.api.services.gmail.model.ListMessagesResponse;
+import com.google.api.services.gmail.model.Message;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GetEmailMetadataTaskTest {
+  private final AtomicLong millis = new AtomicLong();
+  private final List<List<String>> batches = new ArrayList<>();
+
+  interface FailingWorker {
+    List<String> getFailedEmailIds(List<String> emailIds);
+  }
+
+  private GetEmailMetadataTask createTask(List<String> emailIds, FailingWorker worker) {
+    return new GetEmailMetadataTask(emailIds, batchEmailIds -> {
+      batches.add(batchEmailIds);
+      return new GetEmailMetadataTask.BatchResult(worker.getFailedEmailIds(batchEmailIds), 0, 0, 0);
+    }, millis::get, millis::addAndGet, new Random(42));
+  }
+
+  private static List<String> getEmailIds(int count) {
+    return IntStream.range(0, count).mapToObj(String::valueOf).collect(Collectors.toList());
+  }
+
+  @Test
+  void processesAllEmailsInGrowingBatches() throws LongTaskException {
+    GetEmailMetadataTask task = createTask(getEmailIds(100), batchEmailIds -> Collections.emptyList());
+    assertEquals(100, task.getNumberOfSteps());
+    GetEmailMetadataTask.Result result = null;
+    while (task.hasMoreSteps()) {
+      result = task.takeStep();
+    }
+    assertNotNull(result);
+    assertEquals(100, result.numberOfProcessedEmails);
+    assertEquals(Arrays.asList(40, 50, 10), batches.stream().map(List::size).collect(Collectors.toList()));
+    assertEquals(0, millis.get());
+  }
+
+  @Test
+  void waitingForQuotaDoesNotShrinkBatches() throws LongTaskException {
+    GetEmailMetadataTask task = new GetEmailMetadataTask(getEmailIds(100), batchEmailIds -> {
+      batches.add(batchEmailIds);
+      // Most of the time goes into waiting for quota, while the requests themselves are quick.
+      millis.addAndGet(60000);
+      return new GetEmailMetadataTask.BatchResult(Collections.emptyList(), 0, 0, 100);
+    }, millis::get, millis::addAndGet, new Random(42));
+    while (task.hasMoreSteps()) {
+      task.takeStep();
+    }
+    assertEquals(Arrays.asList(40, 50, 10), batches.stream().map(List::size).collect(Collectors.toList()));
+  }
+
+  @Test
+  void retriesFailedEmailsInLaterBatches() throws LongTaskException {
+    Set<String> failedOnce = new HashSet<>(Arrays.asList("3", "7"));
+    GetEmailMetadataTask task = createTask(getEmailIds(50), batchEmailIds ->
+        batchEmailIds.stream().filter(failedOnce::remove).collect(Collectors.toList()));
+    GetEmailMetadataTask.Result result = null;
+    while (task.hasMoreSteps()) {
+      result = task.takeStep();
+    }
+    assertNotNull(result);
+    assertEquals(50, result.numberOfProcessedEmails);
+    assertEquals(50, result.numberOfEmails);
+    assertEquals(3, batches.size());
+    assertEquals(Arrays.asList("3", "7"), batches.get(2));
+    assertTrue(millis.get() >= 500, "should back off before retrying");
+  }
+
+  @Test
+  void givesUpAfterMaxAttempts() {
+    GetEmailMetadataTask task = createTask(getEmailIds(1), batchEmailIds -> batchEmailIds);
+    LongTaskException exception = assertThrows(LongTaskException.class, () -> {
+      while (task.hasMoreSteps()) {
+        task.takeStep();
+      }
+    });
+    assertTrue(exception.getCause() instanceof IOException);
+    assertEquals(RetryPolicy.MAX_ATTEMPTS, batches.size());
+  }
+
+  private static ListMessagesResponse createPage(List<String> emailIds, String nextPageToken) {
+    List<Message> messages = emailIds.stream().map(id -> new Message().setId(id)).collect(Collectors.toList());
+    return new ListMessagesResponse().setMessages(messages).setNextPageToken(nextPageToken);
+  }
+
+  @Test
+  void obtainsMetadataWhileLaterPagesAreStillListed() throws LongTaskException, InterruptedException {
+    CountDownLatch firstBatchDone = new CountDownLatch(1);
+    EmailIdLister lister = EmailIdLister.start(pageToken -> {
+      if (pageToken == null) {
+        return createPage(List.of("0", "1", "2"), "page-2");
+      }
+      try {
+        // The second page is only listed after the first one has been processed.
+        assertTrue(firstBatchDone.await(5, TimeUnit.SECONDS));
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+      return createPage(List.of("3", "4"), null);
+    });
+    GetEmailMetadataTask task = new GetEmailMetadataTask(lister, batchEmailIds -> {
+      batches.add(batchEmailIds);
+      firstBatchDone.countDown();
+      return new GetEmailMetadataTask.BatchResult(Collections.emptyList(), 0, 0, 0);
+    });
+    GetEmailMetadataTask.Result result = task.takeStep();
+    assertEquals(List.of("0", "1", "2"), batches.get(0));
+    assertFalse(result.listingComplete);
+    while (task.hasMoreSteps()) {
+      result = task.takeStep();
+    }
+    assertEquals(List.of(List.of("0", "1", "2"), List.of("3", "4")), batches);
+    assertEquals(5, result.numberOfProcessedEmails);
+    assertEquals(5, result.numberOfEmails);
+    assertTrue(result.listingComplete);
+  }
+
+  @Test
+  void listingFailureFailsTheTask() {
+    EmailIdLister lister = EmailIdLister.start(pageToken -> {
+      if (pageToken == null) {
+        return createPage(List.of("0"), "page-2");
+      }
+      throw new IOException("Listing failed.");
+    });
+    GetEmailMetadataTask task = new GetEmailMetadataTask(lister, batchEmailIds -> {
+      batches.add(batchEmailIds);
+      return new GetEmailMetadataTask.BatchResult(Collections.emptyList(), 0, 0, 0);
+    });
+    LongTaskException exception = assertThrows(LongTaskException.class, () -> {
+      while (task.hasMoreSteps()) {
+        task.takeStep();
+      }
+    });
+    assertEquals("Listing failed.", exception.getCause().getMessage());
+  }
+}
@@ -0,0 +1,88 @@
+package app.unattach.model;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.Message;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GmailServiceLifecycleManagerTest {
+  private final List<MockLowLevelHttpRequest> requests = new ArrayList<>();
+  private final Gmail service = GmailServiceLifecycleManager.buildService(new MockHttpTransport() {
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) {
+      MockLowLevelHttpRequest request = new MockLowLevelHttpRequest(url) {
+        @Override
+        public LowLevelHttpResponse execute() {
+          return new MockLowLevelHttpResponse().setContentType("application/json").setContent("{}");
+        }
+      };
+      requests.add(request);
+      return request;
+    }
+  }, request -> {});
+
+  private void assertAsksForCompressedResponse() {
+    MockLowLevelHttpRequest request = requests.get(requests.size() - 1);
+    assertEquals("gzip", request.getFirstHeaderValue("Accept-Encoding"));
+    assertTrue(request.getFirstHeaderValue("User-Agent").contains("gzip"));
+  }
+
+  @Test
+  void listAsksForCompressedResponse() throws IOException {
+    service.users().messages().list("me").execute();
+    assertAsksForCompressedResponse();
+  }
+
+  @Test
+  void rawDownloadAsksForCompressedResponse() throws IOException {
+    service.users().messages().get("me", "id").setFormat("raw").executeUnparsed().disconnect();
+    assertAsksForCompressedResponse();
+  }
+
+  @Test
+  void batchAsksForCompressedResponse() throws IOException {
+    BatchRequest batch = service.batch();
+    service.users().messages().get("me", "id").queue(batch, new JsonBatchCallback<>() {
+      @Override
+      public void onSuccess(Message message, HttpHeaders responseHeaders) {}
+
+      @Override
+      public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {}
+    });
+    try {
+      batch.execute();
+    } catch (IOException | RuntimeException e) {
+      // The mock response isn't a multipart response.
+    }
+    assertAsksForCompressedResponse();
+  }
+
+  @Test
+  void insertCompressesTheEmail() throws IOException {
+    byte[] email = String.join("", Collections.nCopies(100, "Subject: Test\r\n")).getBytes();
+    Gmail.Users.Messages.Insert insert =
+        service.users().messages().insert("me", new Message(), new ByteArrayContent("message/rfc822", email));
+    insert.getMediaHttpUploader().setDirectUploadEnabled(true);
+    insert.execute();
+    MockLowLevelHttpRequest request = requests.get(requests.size() - 1);
+    assertEquals("gzip", request.getContentEncoding());
+    assertTrue(request.getContentAsString().contains("Subject: Test"));
+    assertAsksForCompressedResponse();
+  }
+}
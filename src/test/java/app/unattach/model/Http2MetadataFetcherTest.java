@@ -0,0 +1,151 @@
+package app.unattach.model;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.services.gmail.model.Message;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class Http2MetadataFetcherTest {
+  private static final String FIELDS = "id,labelIds,internalDate,payload/headers,sizeEstimate";
+
+  private HttpServer gmailServer;
+  private final List<String> authorizationHeaders = Collections.synchronizedList(new ArrayList<>());
+  private final List<Message> messages = new ArrayList<>();
+  private final ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter();
+  private final TrafficCounter trafficCounter = new TrafficCounter();
+  private final AtomicInteger tokenRefreshes = new AtomicInteger();
+  // the token that the server refuses, if any
+  private volatile String revokedToken;
+  private Http2MetadataFetcher fetcher;
+
+  @BeforeEach
+  void startGmailServer() throws IOException {
+    gmailServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    gmailServer.createContext("/gmail/v1/users/me/messages/", this::handle);
+    gmailServer.start();
+    Credential credential = new Credential(BearerToken.authorizationHeaderAccessMethod()) {
+      @Override
+      protected TokenResponse executeRefreshToken() {
+        tokenRefreshes.incrementAndGet();
+        return new TokenResponse().setAccessToken("token-" + (tokenRefreshes.get() + 1));
+      }
+    }.setAccessToken("token");
+    URI messagesUri = URI.create("http://localhost:" + gmailServer.getAddress().getPort() +
+        "/gmail/v1/users/me/messages/");
+    QuotaScheduler quotaScheduler = new QuotaScheduler(new LocalTokenBucket(250, System::nanoTime), units -> {});
+    fetcher = new Http2MetadataFetcher(messagesUri, FIELDS, credential, quotaScheduler, concurrencyLimiter,
+        trafficCounter, messages::add);
+  }
+
+  @AfterEach
+  void stopGmailServer() {
+    fetcher.close();
+    gmailServer.stop(0);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    authorizationHeaders.add(exchange.getRequestHeaders().getFirst("Authorization"));
+    String path = exchange.getRequestURI().getPath();
+    String emailId = path.substring(path.lastIndexOf('/') + 1);
+    assertEquals("fields=" + FIELDS, exchange.getRequestURI().getQuery());
+    if (("Bearer " + revokedToken).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+      respond(exchange, 401, "{\"error\": {\"code\": 401, \"message\": \"Invalid Credentials\", " +
+          "\"errors\": [{\"reason\": \"authError\"}]}}");
+      return;
+    }
+    switch (emailId) {
+      case "unavailable":
+        respond(exchange, 503, "{\"error\": {\"code\": 503, \"message\": \"Backend Error\", " +
+            "\"errors\": [{\"reason\": \"backendError\"}]}}");
+        break;
+      case "throttled":
+        respond(exchange, 429, "{\"error\": {\"code\": 429, \"message\": \"Too many concurrent requests\", " +
+            "\"errors\": [{\"reason\": \"rateLimitExceeded\"}]}}");
+        break;
+      case "missing":
+        respond(exchange, 404, "{\"error\": {\"code\": 404, \"message\": \"Not Found\", " +
+            "\"errors\": [{\"reason\": \"notFound\"}]}}");
+        break;
+      default:
+        respond(exchange, 200, "{\"id\": \"" + emailId + "\", \"labelIds\": [\"INBOX\"], " +
+            "\"internalDate\": \"1000\", \"sizeEstimate\": 2048, " +
+            "\"payload\": {\"headers\": [{\"name\": \"Subject\", \"value\": \"Hello\"}]}}");
+    }
+  }
+
+  // Compresses the response like Gmail does.
+  private static void respond(HttpExchange exchange, int statusCode, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+    String userAgent = exchange.getRequestHeaders().getFirst("User-Agent");
+    if ("gzip".equals(acceptEncoding) && userAgent != null && userAgent.contains("gzip")) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      try (OutputStream out = new GZIPOutputStream(compressed)) {
+        out.write(bytes);
+      }
+      bytes = compressed.toByteArray();
+      exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+    }
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(statusCode, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  @Test
+  void transientFailuresOnlyAffectTheirEmail() throws IOException {
+    GetEmailMetadataTask.BatchResult result = fetcher.getEmailMetadata(List.of("a", "unavailable", "b"));
+    assertEquals(List.of("unavailable"), result.failedEmailIds);
+    assertEquals(0, result.numberOfThrottledEmails);
+    assertEquals(2 * ("Subject".length() + "Hello".length()), result.payloadBytes);
+    assertEquals(List.of("a", "b"), messages.stream().map(Message::getId).collect(Collectors.toList()));
+    assertEquals(Integer.valueOf(2048), messages.get(0).getSizeEstimate());
+    assertEquals(List.of("Bearer token", "Bearer token", "Bearer token"), authorizationHeaders);
+    assertTrue(concurrencyLimiter.getStatistics().contains("overloads=1"));
+    assertTrue(trafficCounter.getNetworkBytesReceived() > 0);
+  }
+
+  @Test
+  void onlyRateLimitedEmailsCountAsThrottled() throws IOException {
+    GetEmailMetadataTask.BatchResult result = fetcher.getEmailMetadata(List.of("throttled", "unavailable"));
+    assertEquals(List.of("throttled", "unavailable"), result.failedEmailIds);
+    assertEquals(1, result.numberOfThrottledEmails);
+  }
+
+  @Test
+  void permanentFailureFailsTheBatch() {
+    assertThrows(IOException.class, () -> fetcher.getEmailMetadata(List.of("a", "missing")));
+  }
+
+  @Test
+  void refreshesARevokedTokenOnce() throws IOException {
+    revokedToken = "token";
+    List<String> emailIds = List.of("a", "b", "c", "d", "e", "f", "g", "h");
+    GetEmailMetadataTask.BatchResult result = fetcher.getEmailMetadata(emailIds);
+    assertTrue(result.failedEmailIds.isEmpty());
+    assertEquals(emailIds.size(), messages.size());
+    assertEquals(1, tokenRefreshes.get());
+    assertTrue(authorizationHeaders.stream().allMatch(header -> header.equals("Bearer token") ||
+        header.equals("Bearer token-2")));
+  }
+}
@@ -0,0 +1,71 @@
+package app.unattach.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ListingShardsTest {
+  private static final long NOW_SECONDS = 1700000000;
+  private static final Pattern AFTER = Pattern.compile("after:(\\d+)");
+  private static final Pattern BEFORE = Pattern.compile("before:(\\d+)");
+
+  private final List<String> estimatedQueries = new ArrayList<>();
+
+  // Emails one per hour over the last few years, plus some imported ones that are older than Gmail.
+  private static List<Long> getTimestamps(int count) {
+    List<Long> timestamps = LongStream.range(0, count).map(i -> NOW_SECONDS - i * 3600).boxed()
+        .collect(Collectors.toList());
+    timestamps.add(631152000L);
+    return timestamps;
+  }
+
+  private ListingShards.Estimator createEstimator(List<Long> timestamps) {
+    return query -> {
+      estimatedQueries.add(query);
+      return getMatches(query, timestamps).size();
+    };
+  }
+
+  private static List<Long> getMatches(String query, List<Long> timestamps) {
+    long after = getBound(AFTER, query, Long.MIN_VALUE);
+    long before = getBound(BEFORE, query, Long.MAX_VALUE);
+    return timestamps.stream().filter(t -> t > after && t < before).collect(Collectors.toList());
+  }
+
+  private static long getBound(Pattern pattern, String query, long defaultValue) {
+    Matcher matcher = pattern.matcher(query);
+    return matcher.find() ? Long.parseLong(matcher.group(1)) : defaultValue;
+  }
+
+  @Test
+  void smallSearchIsNotSplit() throws IOException {
+    List<String> shards = ListingShards.split("has:attachment", createEstimator(getTimestamps(100)), NOW_SECONDS);
+    assertEquals(List.of("has:attachment"), shards);
+    assertEquals(1, estimatedQueries.size());
+  }
+
+  @Test
+  void largeSearchIsSplitIntoWindowsThatCoverEveryEmail() throws IOException {
+    List<Long> timestamps = getTimestamps(40000);
+    List<String> shards = ListingShards.split("has:attachment", createEstimator(timestamps), NOW_SECONDS);
+    assertTrue(shards.size() > 1 && shards.size() <= ListingShards.MAX_SHARDS, shards.toString());
+    Set<Long> covered = new HashSet<>();
+    for (String shard : shards) {
+      assertTrue(shard.startsWith("(has:attachment) "), shard);
+      List<Long> matches = getMatches(shard, timestamps);
+      assertTrue(matches.size() <= ListingShards.SHARD_SIZE, shard + " matches " + matches.size());
+      covered.addAll(matches);
+    }
+    assertEquals(new HashSet<>(timestamps), covered);
+    // newest first
+    assertFalse(shards.get(0).contains("before:"));
+    assertFalse(shards.get(shards.size() - 1).contains("after:"));
+  }
+}
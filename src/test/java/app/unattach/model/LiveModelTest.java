@@ -0,0 +1,177 @@
+package app.unattach.model;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.Message;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LiveModelTest {
+  private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+  private HttpServer server;
+  private Gmail service;
+  private File slimFile;
+  // what the server received, in order
+  private final List<String> requests = new ArrayList<>();
+  private String metadata;
+  private String multipartBody;
+  // the index of the request that fails with a server error
+  private int failingRequest = -1;
+  // the resumable upload, of which the server keeps half of a failed chunk
+  private byte[] uploaded;
+  private int committed;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", this::handle);
+    server.start();
+    String rootUrl = "http://localhost:" + server.getAddress().getPort() + "/";
+    service = new Gmail.Builder(new NetHttpTransport(), JacksonFactory.getDefaultInstance(),
+        GmailServiceLifecycleManager.setHttpTimeout(request -> {})).setRootUrl(rootUrl).build();
+    slimFile = File.createTempFile("live-model-test-", ".eml");
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    server.stop(0);
+    Files.deleteIfExists(slimFile.toPath());
+  }
+
+  private synchronized void handle(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    String query = exchange.getRequestURI().getQuery();
+    String contentRange = exchange.getRequestHeaders().getFirst("Content-Range");
+    requests.add(method + " " + (query == null ? exchange.getRequestURI().getPath() : query) +
+        (contentRange == null ? "" : " " + contentRange));
+    InputStream in = exchange.getRequestBody();
+    if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+      in = new GZIPInputStream(in);
+    }
+    byte[] body = in.readAllBytes();
+    if (requests.size() - 1 == failingRequest) {
+      Matcher matcher = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange);
+      if (matcher != null && matcher.matches()) {
+        int start = Integer.parseInt(matcher.group(1));
+        System.arraycopy(body, 0, uploaded, start, body.length / 2);
+        committed = start + body.length / 2;
+      }
+      respond(exchange, 503, "{}");
+      return;
+    }
+    if (query != null && query.contains("uploadType=multipart")) {
+      multipartBody = new String(body, StandardCharsets.ISO_8859_1);
+      respond(exchange, 200, "{\"id\": \"slim\"}");
+    } else if (query != null && query.contains("uploadType=resumable")) {
+      metadata = new String(body, StandardCharsets.UTF_8);
+      uploaded = new byte[(int) slimFile.length()];
+      exchange.getResponseHeaders().set("Location", "http://localhost:" + server.getAddress().getPort() +
+          "/upload/session");
+      respond(exchange, 200, null);
+    } else {
+      Matcher matcher = CONTENT_RANGE.matcher(contentRange);
+      if (matcher.matches()) {
+        int start = Integer.parseInt(matcher.group(1));
+        System.arraycopy(body, 0, uploaded, start, body.length);
+        committed = start + body.length;
+      }
+      if (committed == uploaded.length) {
+        respond(exchange, 200, "{\"id\": \"slim\"}");
+      } else {
+        exchange.getResponseHeaders().set("Range", "bytes=0-" + (committed - 1));
+        respond(exchange, 308, null);
+      }
+    }
+  }
+
+  private static void respond(HttpExchange exchange, int statusCode, String body) throws IOException {
+    if (body == null) {
+      exchange.sendResponseHeaders(statusCode, -1);
+      exchange.close();
+      return;
+    }
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(statusCode, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private Message getMessage() {
+    return new Message().setThreadId("thread").setLabelIds(Collections.singletonList("INBOX"));
+  }
+
+  @Test
+  void insertsSmallCopyWithSingleRequest() throws IOException {
+    Files.write(slimFile.toPath(), "Subject: Slim\r\n\r\nHello.\r\n".getBytes(StandardCharsets.US_ASCII));
+    Message newMessage = LiveModel.insertSlimMessage(service, getMessage(), slimFile, "Label_1");
+    assertEquals("slim", newMessage.getId());
+    assertEquals(1, requests.size());
+    assertTrue(multipartBody.contains("\"labelIds\":[\"INBOX\",\"Label_1\"]"));
+    assertTrue(multipartBody.contains("Content-Type: message/rfc822\r\n"));
+    assertTrue(multipartBody.contains("Subject: Slim\r\n\r\nHello.\r\n"));
+  }
+
+  @Test
+  void doesNotRepeatFailedSingleRequest() throws IOException {
+    Files.write(slimFile.toPath(), "Subject: Slim\r\n\r\nHello.\r\n".getBytes(StandardCharsets.US_ASCII));
+    failingRequest = 0;
+    assertThrows(IOException.class, () -> LiveModel.insertSlimMessage(service, getMessage(), slimFile, "Label_1"));
+    // Gmail might have stored the copy, so sending it again could store a duplicate.
+    assertEquals(1, requests.size());
+  }
+
+  @Test
+  void resumesFailedChunk() throws IOException {
+    byte[] email = new byte[LiveModel.UPLOAD_CHUNK_SIZE + 1000];
+    byte[] header = "Subject: Large\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    System.arraycopy(header, 0, email, 0, header.length);
+    for (int i = header.length; i < email.length; ++i) {
+      email[i] = (byte) ('a' + i % 26);
+    }
+    Files.write(slimFile.toPath(), email);
+    // the first chunk, of which the server only keeps half
+    failingRequest = 2;
+    Message newMessage = LiveModel.insertSlimMessage(service, getMessage(), slimFile, "Label_1");
+    assertEquals("slim", newMessage.getId());
+    assertTrue(metadata.contains("\"labelIds\":[\"INBOX\",\"Label_1\"]"));
+    assertArrayEquals(email, uploaded);
+    int chunkSize = LiveModel.UPLOAD_CHUNK_SIZE;
+    int total = email.length;
+    assertEquals(List.of(
+        "POST internalDateSource=dateHeader&uploadType=resumable",
+        // The uploader starts by asking what the server has.
+        "PUT /upload/session bytes */" + total,
+        "PUT /upload/session bytes 0-" + (chunkSize - 1) + "/" + total,
+        // After the failure, it asks again, and continues from there.
+        "PUT /upload/session bytes */" + total,
+        "PUT /upload/session bytes " + chunkSize / 2 + "-" + (total - 1) + "/" + total
+    ), requests);
+  }
+
+  @Test
+  void looksForTheSlimCopyAroundTheDateOfTheOriginal() {
+    Email email = new Email("abc", null, Collections.emptyList(), "from@example.com", "Test", 1_600_000_000_123L, 100);
+    assertEquals("after:1599913600 before:1600086400", LiveModel.getSlimCopyQuery(email));
+  }
+}
@@ -0,0 +1,45 @@
+package app.unattach.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MemoryBudgetTest {
+  private static Email createEmail(int sizeInBytes) {
+    return new Email("1", "1", Collections.emptyList(), "from@example.com", "Subject", 0, sizeInBytes);
+  }
+
+  @Test
+  void blocksUntilTheEmailFits() throws InterruptedException {
+    MemoryBudget memoryBudget = new MemoryBudget(1000, 2);
+    long first = memoryBudget.acquire(createEmail(300));
+    assertEquals(600, first);
+    CountDownLatch admitted = new CountDownLatch(1);
+    Thread thread = new Thread(() -> {
+      try {
+        memoryBudget.acquire(createEmail(300));
+        admitted.countDown();
+      } catch (InterruptedException e) {
+        // The test fails.
+      }
+    });
+    thread.start();
+    assertFalse(admitted.await(100, TimeUnit.MILLISECONDS));
+    memoryBudget.release(first);
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+    assertEquals(600, memoryBudget.getUsedBytes());
+  }
+
+  @Test
+  void admitsAnEmailLargerThanTheBudgetByItself() throws InterruptedException {
+    MemoryBudget memoryBudget = new MemoryBudget(1000, 2);
+    long bytes = memoryBudget.acquire(createEmail(800));
+    assertEquals(1600, memoryBudget.getUsedBytes());
+    memoryBudget.release(bytes);
+    assertEquals(0, memoryBudget.getUsedBytes());
+  }
+}
@@ -0,0 +1,80 @@
+package app.unattach.model;
+
+import app.unattach.controller.LongTaskException;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Compares the batch and HTTP/2 engines for obtaining email metadata against the signed-in Gmail account. Every round
+// costs 5 quota units per matching email. Usage: MetadataEngineBenchmark [query] [rounds] > bench_output.txt
+public class MetadataEngineBenchmark {
+  private static final String[] ENGINES = {"batch", "http2"};
+
+  public static void main(String[] args)
+      throws IOException, GeneralSecurityException, InterruptedException, LongTaskException {
+    String query = args.length > 0 ? args[0] : "has:attachment size:1m";
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    LiveModel model = new LiveModel();
+    model.signIn();
+    System.out.println("query: " + query);
+    System.out.println("engine  round  emails  seconds  emails/s  step p50 ms  step p95 ms  peak heap MB");
+    for (int round = 1; round <= rounds; ++round) {
+      // Alternate the engines, so that neither benefits from warm connections or caches more than the other.
+      for (String engine : ENGINES) {
+        System.setProperty(LiveModel.METADATA_ENGINE_PROPERTY, engine);
+        run(model, query, engine, round);
+      }
+    }
+    System.exit(0);
+  }
+
+  private static void run(LiveModel model, String query, String engine, int round)
+      throws IOException, InterruptedException, LongTaskException {
+    model.clearPreviousSearch();
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    System.gc();
+    long baselineHeapBytes = memory.getHeapMemoryUsage().getUsed();
+    AtomicLong peakHeapBytes = new AtomicLong(baselineHeapBytes);
+    Thread heapSampler = new Thread(() -> {
+      while (!Thread.currentThread().isInterrupted()) {
+        peakHeapBytes.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    });
+    heapSampler.setDaemon(true);
+    heapSampler.start();
+    List<Long> stepMillis = new ArrayList<>();
+    long startNanos = System.nanoTime();
+    GetEmailMetadataTask task = model.getSearchTask(query);
+    while (task.hasMoreSteps()) {
+      long stepStartNanos = System.nanoTime();
+      task.takeStep();
+      stepMillis.add((System.nanoTime() - stepStartNanos) / 1000000);
+    }
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    heapSampler.interrupt();
+    heapSampler.join();
+    int emails = model.getEmails().size();
+    Collections.sort(stepMillis);
+    System.out.printf("%-6s  %5d  %6d  %7.2f  %8.1f  %11d  %11d  %12d%n", engine, round, emails, seconds,
+        emails / seconds, getPercentile(stepMillis, 0.5), getPercentile(stepMillis, 0.95),
+        (peakHeapBytes.get() - baselineHeapBytes) / Constants.BYTES_IN_MEGABYTE);
+  }
+
+  private static long getPercentile(List<Long> sortedValues, double percentile) {
+    if (sortedValues.isEmpty()) {
+      return 0;
+    }
+    return sortedValues.get((int) (percentile * (sortedValues.size() - 1)));
+  }
+}
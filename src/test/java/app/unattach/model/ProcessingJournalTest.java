@@ -0,0 +1,73 @@
+package app.unattach.model;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProcessingJournalTest {
+  private Path path;
+
+  @BeforeEach
+  void createJournalFile() throws IOException {
+    path = Files.createTempFile("unattach-journal", ".log");
+  }
+
+  @AfterEach
+  void deleteJournalFile() throws IOException {
+    Files.deleteIfExists(path);
+  }
+
+  @Test
+  void latestPhaseOfEachEmailSurvivesRestart() throws IOException {
+    try (ProcessingJournal journal = new ProcessingJournal(path.toFile())) {
+      journal.record("a", ProcessingJournal.Phase.STARTED, null);
+      journal.record("b", ProcessingJournal.Phase.STARTED, null);
+      journal.record("a", ProcessingJournal.Phase.INSERTED, "a2");
+      journal.sync();
+      journal.record("a", ProcessingJournal.Phase.DONE, "r:1");
+    }
+    try (ProcessingJournal journal = new ProcessingJournal(path.toFile())) {
+      assertEquals(ProcessingJournal.Phase.DONE, journal.get("a").phase);
+      assertEquals("r:1", journal.get("a").argument);
+      assertEquals(ProcessingJournal.Phase.STARTED, journal.get("b").phase);
+      assertNull(journal.get("b").argument);
+      assertNull(journal.get("c"));
+    }
+  }
+
+  @Test
+  void syncWritesRecordsBeforeReturning() throws IOException {
+    try (ProcessingJournal journal = new ProcessingJournal(path.toFile())) {
+      journal.record("a", ProcessingJournal.Phase.STARTED, null);
+      journal.sync();
+      assertEquals(List.of("STARTED\ta"), Files.readAllLines(path));
+      // nothing new to write
+      journal.sync();
+      assertEquals(1, Files.readAllLines(path).size());
+    }
+  }
+
+  @Test
+  void recordTornByCrashIsSkipped() throws IOException {
+    Files.writeString(path, "STARTED\ta\nINSERTED\ta\ta2\nDONE\tb\tr:1\nINSERT", StandardCharsets.UTF_8,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    try (ProcessingJournal journal = new ProcessingJournal(path.toFile())) {
+      assertEquals(ProcessingJournal.Phase.INSERTED, journal.get("a").phase);
+      assertEquals("a2", journal.get("a").argument);
+      assertEquals(ProcessingJournal.Phase.DONE, journal.get("b").phase);
+      journal.record("c", ProcessingJournal.Phase.STARTED, null);
+    }
+    try (ProcessingJournal journal = new ProcessingJournal(path.toFile())) {
+      assertEquals(ProcessingJournal.Phase.STARTED, journal.get("c").phase);
+    }
+  }
+}
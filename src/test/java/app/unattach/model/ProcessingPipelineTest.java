@@ -0,0 +1,279 @@
+package app.unattach.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProcessingPipelineTest {
+  private final List<String> processed = Collections.synchronizedList(new ArrayList<>());
+  private final List<String> failed = Collections.synchronizedList(new ArrayList<>());
+
+  private ProcessingPipeline createPipeline(ProcessingPipeline.Stage... stages) {
+    return createPipeline(null, stages);
+  }
+
+  private ProcessingPipeline createPipeline(MemoryBudget memoryBudget, ProcessingPipeline.Stage... stages) {
+    ProcessSettings processSettings =
+        new ProcessSettings(new ProcessOption(false, true, false), new File("."), "", false);
+    return new ProcessingPipeline(processSettings, List.of(stages), memoryBudget, new ProcessingPipeline.Listener() {
+      @Override
+      public void onEmailProcessed(Email email) {
+        processed.add(email.getGmailId());
+      }
+
+      @Override
+      public void onEmailFailed(Email email, Throwable t) {
+        failed.add(email.getGmailId());
+      }
+    });
+  }
+
+  private static Email createEmail(int i) {
+    return new Email(String.valueOf(i), String.valueOf(i), Collections.emptyList(), "from@example.com",
+        "Subject " + i, 0, 1000);
+  }
+
+  @Test
+  void emailsInDifferentStagesOverlap() throws InterruptedException {
+    CountDownLatch secondEmailFetched = new CountDownLatch(1);
+    AtomicInteger overlapped = new AtomicInteger();
+    try (ProcessingPipeline pipeline = createPipeline(
+        new ProcessingPipeline.Stage("fetch", 1, 1, job -> {
+          if (job.email.getGmailId().equals("1")) {
+            secondEmailFetched.countDown();
+          }
+        }),
+        new ProcessingPipeline.Stage("upload", 1, 1, job -> {
+          // The first email can only finish uploading once the second one was fetched in the meantime.
+          if (job.email.getGmailId().equals("0") && secondEmailFetched.await(5, TimeUnit.SECONDS)) {
+            overlapped.incrementAndGet();
+          }
+        }))) {
+      pipeline.submit(createEmail(0));
+      pipeline.submit(createEmail(1));
+      pipeline.awaitCompletion();
+    }
+    assertEquals(1, overlapped.get());
+    assertEquals(Set.of("0", "1"), new HashSet<>(processed));
+  }
+
+  @Test
+  void fullStageHoldsBackEarlierStages() throws InterruptedException {
+    CountDownLatch uploadsAllowed = new CountDownLatch(1);
+    AtomicInteger fetched = new AtomicInteger();
+    try (ProcessingPipeline pipeline = createPipeline(
+        new ProcessingPipeline.Stage("fetch", 1, 1, job -> fetched.incrementAndGet()),
+        new ProcessingPipeline.Stage("upload", 1, 1, job -> uploadsAllowed.await()))) {
+      Thread submitter = new Thread(() -> {
+        try {
+          for (int i = 0; i < 10; ++i) {
+            pipeline.submit(createEmail(i));
+          }
+        } catch (InterruptedException ignored) {}
+      });
+      submitter.start();
+      Thread.sleep(300);
+      // 2 emails in the upload stage and 1 fetched email waiting to be handed over
+      assertEquals(3, fetched.get());
+      assertTrue(submitter.isAlive());
+      uploadsAllowed.countDown();
+      submitter.join(5000);
+      pipeline.awaitCompletion();
+    }
+    assertEquals(10, fetched.get());
+    assertEquals(10, processed.size());
+  }
+
+  @Test
+  void failedEmailSkipsLaterStages() throws InterruptedException {
+    List<String> uploaded = Collections.synchronizedList(new ArrayList<>());
+    List<Email> emails = new ArrayList<>();
+    try (ProcessingPipeline pipeline = createPipeline(
+        new ProcessingPipeline.Stage("parse", 2, 1, job -> {
+          if (job.email.getGmailId().equals("1")) {
+            throw new IOException("Unable to parse.");
+          }
+        }),
+        new ProcessingPipeline.Stage("upload", 2, 1, job -> uploaded.add(job.email.getGmailId())))) {
+      for (int i = 0; i < 3; ++i) {
+        emails.add(createEmail(i));
+        pipeline.submit(emails.get(i));
+      }
+      pipeline.awaitCompletion();
+    }
+    assertEquals(Set.of("0", "2"), new HashSet<>(uploaded));
+    assertEquals(Set.of("0", "2"), new HashSet<>(processed));
+    assertEquals(List.of("1"), failed);
+    // The listener sets the statuses, on the thread of its choosing.
+    assertEquals(EmailStatus.IGNORED, emails.get(0).getStatus());
+    assertEquals(EmailStatus.IGNORED, emails.get(1).getStatus());
+  }
+
+  @Test
+  void stopFinishesStartedEmailsAndDropsTheRest() throws InterruptedException {
+    CountDownLatch firstEmailStarted = new CountDownLatch(1);
+    CountDownLatch stopped = new CountDownLatch(1);
+    try (ProcessingPipeline pipeline = createPipeline(
+        new ProcessingPipeline.Stage("fetch", 1, 5, job -> {
+          firstEmailStarted.countDown();
+          stopped.await();
+        }),
+        new ProcessingPipeline.Stage("upload", 1, 1, job -> {}))) {
+      for (int i = 0; i < 5; ++i) {
+        pipeline.submit(createEmail(i));
+      }
+      assertTrue(firstEmailStarted.await(5, TimeUnit.SECONDS));
+      pipeline.stop();
+      stopped.countDown();
+      pipeline.awaitCompletion();
+    }
+    assertEquals(List.of("0"), processed);
+    assertTrue(failed.isEmpty());
+  }
+
+  // Blocks until the current phase is cancelled.
+  private static void awaitCancellation() throws InterruptedException, InterruptedIOException {
+    CountDownLatch cancelled = new CountDownLatch(1);
+    Cancellation.current().onCancel(cancelled::countDown);
+    assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+    throw new InterruptedIOException("Cancelled.");
+  }
+
+  @Test
+  void pauseAbortsCancellableStageAndRunsItAgainOnResume() throws InterruptedException {
+    CountDownLatch firstAttemptStarted = new CountDownLatch(1);
+    AtomicInteger attempts = new AtomicInteger();
+    try (ProcessingPipeline pipeline = createPipeline(
+        new ProcessingPipeline.Stage("fetch", 1, 1, job -> {
+          if (attempts.incrementAndGet() == 1) {
+            firstAttemptStarted.countDown();
+            awaitCancellation();
+          }
+        }, true),
+        new ProcessingPipeline.Stage("upload", 1, 1, job -> {}))) {
+      pipeline.submit(createEmail(0));
+      assertTrue(firstAttemptStarted.await(5, TimeUnit.SECONDS));
+      pipeline.pause();
+      Thread.sleep(200);
+      assertEquals(1, attempts.get());
+      assertTrue(processed.isEmpty());
+      pipeline.resume();
+      pipeline.awaitCompletion();
+    }
+    assertEquals(2, attempts.get());
+    assertEquals(List.of("0"), processed);
+    assertTrue(failed.isEmpty());
+  }
+
+  @Test
+  void stopAbortsCancellableStage() throws InterruptedException {
+    CountDownLatch started = new CountDownLatch(2);
+    Email email = createEmail(0);
+    try (ProcessingPipeline pipeline = createPipeline(
+        new ProcessingPipeline.Stage("fetch", 2, 1, job -> {
+          started.countDown();
+          awaitCancellation();
+        }, true),
+        new ProcessingPipeline.Stage("upload", 1, 1, job -> {}))) {
+      pipeline.submit(email);
+      pipeline.submit(createEmail(1));
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      pipeline.stop();
+      pipeline.awaitCompletion();
+    }
+    assertTrue(processed.isEmpty());
+    assertTrue(failed.isEmpty());
+    assertNotEquals(EmailStatus.PROCESSED, email.getStatus());
+  }
+
+  @Test
+  void batchedStageProcessesEmailsTogether() throws InterruptedException {
+    List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+    try (ProcessingPipeline pipeline = createPipeline(
+        new ProcessingPipeline.Stage("upload", 1, 1, job -> {}),
+        ProcessingPipeline.Stage.batched("delete", 3, 200, jobs -> batchSizes.add(jobs.size())))) {
+      for (int i = 0; i < 7; ++i) {
+        pipeline.submit(createEmail(i));
+      }
+      pipeline.awaitCompletion();
+    }
+    assertEquals(7, batchSizes.stream().mapToInt(Integer::intValue).sum());
+    assertTrue(batchSizes.stream().allMatch(size -> size <= 3));
+    assertTrue(batchSizes.size() < 7);
+    assertEquals(7, processed.size());
+  }
+
+  @Test
+  void failedBatchFailsAllOfItsEmails() throws InterruptedException {
+    try (ProcessingPipeline pipeline = createPipeline(
+        new ProcessingPipeline.Stage("upload", 1, 1, job -> {}),
+        ProcessingPipeline.Stage.batched("delete", 10, 100, jobs -> {
+          throw new IOException("Unable to delete.");
+        }))) {
+      for (int i = 0; i < 3; ++i) {
+        pipeline.submit(createEmail(i));
+      }
+      pipeline.awaitCompletion();
+    }
+    assertTrue(processed.isEmpty());
+    assertEquals(Set.of("0", "1", "2"), new HashSet<>(failed));
+  }
+
+  @Test
+  void memoryBudgetLimitsEmailsInFlight() throws InterruptedException {
+    // Each email needs 1000 bytes, so only two fit at a time.
+    MemoryBudget memoryBudget = new MemoryBudget(2500, 1);
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+    try (ProcessingPipeline pipeline = createPipeline(memoryBudget,
+        new ProcessingPipeline.Stage("fetch", 4, 4, job -> {
+          maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+          if (job.email.getGmailId().equals("3")) {
+            inFlight.decrementAndGet();
+            throw new IOException("Failed to fetch.");
+          }
+        }),
+        new ProcessingPipeline.Stage("upload", 4, 4, job -> {
+          Thread.sleep(20);
+          inFlight.decrementAndGet();
+        }))) {
+      for (int i = 0; i < 10; ++i) {
+        pipeline.submit(createEmail(i));
+      }
+      pipeline.awaitCompletion();
+    }
+    assertEquals(2, maxInFlight.get());
+    assertEquals(9, processed.size());
+    assertEquals(Collections.singletonList("3"), failed);
+    assertEquals(0, memoryBudget.getUsedBytes());
+  }
+
+  @Test
+  void batchedStageDoesNotHoldMemory() throws InterruptedException {
+    MemoryBudget memoryBudget = new MemoryBudget(2500, 1);
+    CountDownLatch batchStarted = new CountDownLatch(1);
+    CountDownLatch finishBatch = new CountDownLatch(1);
+    try (ProcessingPipeline pipeline = createPipeline(memoryBudget,
+        new ProcessingPipeline.Stage("upload", 1, 1, job -> {}),
+        ProcessingPipeline.Stage.batched("delete", 1, 0, jobs -> {
+          batchStarted.countDown();
+          finishBatch.await();
+        }))) {
+      pipeline.submit(createEmail(0));
+      assertTrue(batchStarted.await(5, TimeUnit.SECONDS));
+      assertEquals(0, memoryBudget.getUsedBytes());
+      finishBatch.countDown();
+      pipeline.awaitCompletion();
+    }
+    assertEquals(List.of("0"), processed);
+    assertEquals(0, memoryBudget.getUsedBytes());
+  }
+}
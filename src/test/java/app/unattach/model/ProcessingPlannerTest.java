@@ -0,0 +1,89 @@
+package app.unattach.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProcessingPlannerTest {
+  private static final ProcessOption DOWNLOAD = new ProcessOption(false, true, false);
+  private static final ProcessOption DOWNLOAD_AND_REMOVE = new ProcessOption(false, true, true, "label");
+
+  private static Email getEmail(String id, int sizeInMegaBytes) {
+    return new Email(id, id, null, "from", "subject", 0, sizeInMegaBytes * Constants.BYTES_IN_MEGABYTE);
+  }
+
+  private static List<Integer> getDaySizes(List<List<Email>> days) {
+    return days.stream().map(List::size).collect(Collectors.toList());
+  }
+
+  @Test
+  void everythingFitsIntoToday() {
+    List<Email> emails = Arrays.asList(getEmail("1", 10), getEmail("2", 20));
+    List<List<Email>> days = ProcessingPlanner.splitIntoDays(emails, DOWNLOAD, new QuotaLedger.Usage(0, 0, 0));
+    assertEquals(Collections.singletonList(2), getDaySizes(days));
+  }
+
+  @Test
+  void splitsByRemainingDownloadBudget() {
+    List<Email> emails = Collections.nCopies(150, getEmail("1", 25));
+    long used = 2000L * Constants.BYTES_IN_MEGABYTE;
+    List<List<Email>> days = ProcessingPlanner.splitIntoDays(emails, DOWNLOAD, new QuotaLedger.Usage(used, 0, 0));
+    assertEquals(Arrays.asList(20, 100, 30), getDaySizes(days));
+  }
+
+  @Test
+  void firstDayIsEmptyWhenTodaysBudgetIsUsedUp() {
+    long used = 500L * Constants.BYTES_IN_MEGABYTE;
+    List<List<Email>> days = ProcessingPlanner.splitIntoDays(Collections.singletonList(getEmail("1", 5)),
+        DOWNLOAD_AND_REMOVE, new QuotaLedger.Usage(0, used, 0));
+    assertEquals(Arrays.asList(0, 1), getDaySizes(days));
+  }
+
+  @Test
+  void splitsByUploadBudgetWhenRemoving() {
+    List<Email> emails = Collections.nCopies(2100, getEmail("1", 1));
+    List<List<Email>> days = ProcessingPlanner.splitIntoDays(emails, DOWNLOAD_AND_REMOVE,
+        new QuotaLedger.Usage(0, 0, 0));
+    assertEquals(Arrays.asList(2000, 100), getDaySizes(days));
+  }
+
+  @Test
+  void mostSpaceFirstFillsTheDownloadBudgetBestAndOrdersBySpaceFreed() {
+    List<Email> emails = Arrays.asList(getEmail("1", 1), getEmail("2", 50), getEmail("3", 60), getEmail("4", 50));
+    long used = 2400L * Constants.BYTES_IN_MEGABYTE;
+    List<List<Email>> days = ProcessingPlanner.splitIntoDaysBySpaceFreed(emails, DOWNLOAD_AND_REMOVE,
+        new QuotaLedger.Usage(used, 0, 0));
+    // The largest email alone would leave the rest of today's budget unused.
+    assertEquals(Arrays.asList("2", "4"), getIds(days.get(0)));
+    assertEquals(Arrays.asList("3", "1"), getIds(days.get(1)));
+  }
+
+  @Test
+  void mostSpaceFirstTakesTheLargestEmailsWhenTheNumberOfEmailsIsLimited() {
+    List<Email> emails = new ArrayList<>(Collections.nCopies(2000, getEmail("small", 1)));
+    emails.add(getEmail("large", 10));
+    List<List<Email>> days = ProcessingPlanner.splitIntoDaysBySpaceFreed(emails, DOWNLOAD_AND_REMOVE,
+        new QuotaLedger.Usage(0, 0, 0));
+    assertEquals(Arrays.asList(2000, 1), getDaySizes(days));
+    assertEquals("large", days.get(0).get(0).getGmailId());
+  }
+
+  @Test
+  void mostSpaceFirstKeepsTheOrderWhenNothingIsRemoved() {
+    List<Email> emails = Arrays.asList(getEmail("1", 10), getEmail("2", 20));
+    List<List<Email>> days = ProcessingPlanner.splitIntoDaysBySpaceFreed(emails, DOWNLOAD,
+        new QuotaLedger.Usage(0, 0, 0));
+    assertEquals(Collections.singletonList(Arrays.asList("1", "2")),
+        days.stream().map(ProcessingPlannerTest::getIds).collect(Collectors.toList()));
+  }
+
+  private static List<String> getIds(List<Email> emails) {
+    return emails.stream().map(Email::getGmailId).collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,41 @@
+package app.unattach.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QuotaLedgerTest {
+  private static final Clock CLOCK = Clock.fixed(Instant.parse("2020-06-01T12:00:00Z"), ZoneOffset.UTC);
+
+  @Test
+  void addsUpTheUsageOfLedgersSharingAFile() throws IOException {
+    File file = File.createTempFile("quota-ledger-test-", ".properties");
+    try {
+      QuotaLedger first = new QuotaLedger("a@example.com", file, CLOCK);
+      QuotaLedger second = new QuotaLedger("a@example.com", file, CLOCK);
+      first.recordDownload(100);
+      second.recordDownload(20);
+      first.recordUpload(5);
+      first.flush();
+      second.flush();
+      // Saving picks up what the other ledger saved.
+      assertEquals(120, second.getTodaysUsage().bytesDown);
+      assertEquals(5, second.getTodaysUsage().bytesUp);
+      QuotaLedger third = new QuotaLedger("a@example.com", file, CLOCK);
+      assertEquals(120, third.getTodaysUsage().bytesDown);
+      assertEquals(5, third.getTodaysUsage().bytesUp);
+      // Saving again doesn't count the same usage twice.
+      first.flush();
+      assertEquals(120, new QuotaLedger("a@example.com", file, CLOCK).getTodaysUsage().bytesDown);
+    } finally {
+      Files.deleteIfExists(file.toPath());
+    }
+  }
+}
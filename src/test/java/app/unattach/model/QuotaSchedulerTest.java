@@ -0,0 +1,45 @@
+package app.unattach.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QuotaSchedulerTest {
+  private final AtomicLong nanos = new AtomicLong();
+  private final QuotaScheduler scheduler = new QuotaScheduler(new LocalTokenBucket(250, nanos::get), units -> {});
+
+  @Test
+  void startsWithFullBucket() {
+    assertEquals(0, scheduler.reserve(200, QuotaScheduler.Priority.BULK));
+    assertEquals(0, scheduler.reserve(50, QuotaScheduler.Priority.BULK));
+    assertTrue(scheduler.reserve(5, QuotaScheduler.Priority.BULK) > 0);
+  }
+
+  @Test
+  void refillsOverTime() {
+    assertEquals(0, scheduler.reserve(250, QuotaScheduler.Priority.BULK));
+    long waitNanos = scheduler.reserve(25, QuotaScheduler.Priority.BULK);
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(100), waitNanos, TimeUnit.MICROSECONDS.toNanos(1));
+    nanos.addAndGet(waitNanos);
+    assertEquals(0, scheduler.reserve(25, QuotaScheduler.Priority.BULK));
+  }
+
+  @Test
+  void requestsLargerThanBucketRunIntoDebt() {
+    assertEquals(0, scheduler.reserve(500, QuotaScheduler.Priority.BULK));
+    nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+    assertTrue(scheduler.reserve(1, QuotaScheduler.Priority.INTERACTIVE) > 0);
+    nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(5));
+    assertEquals(0, scheduler.reserve(1, QuotaScheduler.Priority.INTERACTIVE));
+  }
+
+  @Test
+  void bucketDoesNotOverflow() {
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(10));
+    assertEquals(0, scheduler.reserve(250, QuotaScheduler.Priority.BULK));
+    assertTrue(scheduler.reserve(1, QuotaScheduler.Priority.BULK) > 0);
+  }
+}
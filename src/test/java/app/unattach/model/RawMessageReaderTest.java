@@ -0,0 +1,58 @@
+package app.unattach.model;
+
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePartBody;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RawMessageReaderTest {
+  private static final byte[] EMAIL = "Subject: Test\r\n\r\nBody with bytes that need the URL-safe alphabet: ÿþ?>"
+      .getBytes(StandardCharsets.ISO_8859_1);
+
+  // Returns a few bytes at a time, so that the raw message spans many reads.
+  private static InputStream inChunks(String json) {
+    return new FilterInputStream(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8))) {
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return super.read(b, off, Math.min(len, 3));
+      }
+    };
+  }
+
+  @Test
+  void decodesTheRawMessageAndParsesTheRest() throws IOException {
+    String raw = Base64.encodeBase64URLSafeString(EMAIL) + "=";
+    String json = "{\"id\": \"abc\", \"snippet\": \"Not a key: \\\"raw\\\": \\\"x\\\"\", \"labelIds\": [\"INBOX\"], " +
+        "\"raw\": \"" + raw + "\", \"sizeEstimate\": 42}";
+    ByteArrayOutputStream rawOut = new ByteArrayOutputStream();
+    Message message = RawMessageReader.read(inChunks(json), rawOut);
+    assertArrayEquals(EMAIL, rawOut.toByteArray());
+    assertEquals("abc", message.getId());
+    assertEquals("Not a key: \"raw\": \"x\"", message.getSnippet());
+    assertEquals(Collections.singletonList("INBOX"), message.getLabelIds());
+    assertEquals(Integer.valueOf(42), message.getSizeEstimate());
+    assertNull(message.getRaw());
+  }
+
+  @Test
+  void decodesTheDataOfAnAttachment() throws IOException {
+    String json = "{\"size\": 42, \"data\": \"" + Base64.encodeBase64URLSafeString(EMAIL) + "\"}";
+    ByteArrayOutputStream dataOut = new ByteArrayOutputStream();
+    MessagePartBody body = RawMessageReader.readAttachment(inChunks(json), dataOut);
+    assertArrayEquals(EMAIL, dataOut.toByteArray());
+    assertEquals(Integer.valueOf(42), body.getSize());
+    assertNull(body.getData());
+  }
+
+  @Test
+  void failsWithoutRawMessage() {
+    assertThrows(IOException.class,
+        () -> RawMessageReader.read(inChunks("{\"id\": \"abc\"}"), new ByteArrayOutputStream()));
+  }
+}
@@ -0,0 +1,137 @@
+package app.unattach.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SharedTokenBucketTest {
+  private static final int UNITS_PER_SECOND = 100;
+  private static final long RUN_MILLIS = 2000;
+
+  // Takes single units from the shared bucket for a while, and prints how many it got.
+  public static class Worker {
+    public static void main(String[] args) throws IOException, InterruptedException {
+      Path path = Paths.get(args[0]);
+      if (args[1].equals("lock")) {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.lock();
+        System.out.println("locked");
+        Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+        return;
+      }
+      long startTimeMillis = Long.parseLong(args[1]);
+      try (SharedTokenBucket bucket = createBucket(path)) {
+        Thread.sleep(Math.max(0, startTimeMillis - System.currentTimeMillis()));
+        int taken = 0;
+        while (System.currentTimeMillis() < startTimeMillis + RUN_MILLIS) {
+          long waitNanos = bucket.tryTake(1);
+          if (waitNanos == 0) {
+            ++taken;
+          } else {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+          }
+        }
+        System.out.println(taken);
+      }
+    }
+  }
+
+  private static SharedTokenBucket createBucket(Path path) throws IOException {
+    return new SharedTokenBucket(path, UNITS_PER_SECOND,
+        () -> TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()));
+  }
+
+  private static Process startWorker(Path path, String argument) throws IOException {
+    String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Worker.class.getName(),
+        path.toString(), argument).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+  }
+
+  private static String readLine(Process process) throws IOException {
+    return new BufferedReader(new InputStreamReader(process.getInputStream())).readLine();
+  }
+
+  @Test
+  void processesShareOneBudget() throws IOException, InterruptedException {
+    Path path = Files.createTempFile("unattach-quota", ".bucket");
+    try {
+      String startTimeMillis = String.valueOf(System.currentTimeMillis() + 3000);
+      List<Process> processes = new ArrayList<>();
+      for (int i = 0; i < 3; ++i) {
+        processes.add(startWorker(path, startTimeMillis));
+      }
+      int total = 0;
+      for (Process process : processes) {
+        total += Integer.parseInt(readLine(process).trim());
+        assertEquals(0, process.waitFor());
+      }
+      // a full bucket + 2 seconds of refills
+      int expected = UNITS_PER_SECOND + (int) (UNITS_PER_SECOND * RUN_MILLIS / 1000);
+      assertTrue(total <= expected * 1.1, "took " + total + " units, expected about " + expected);
+      assertTrue(total >= expected * 0.8, "took " + total + " units, expected about " + expected);
+    } finally {
+      Files.deleteIfExists(path);
+    }
+  }
+
+  @Test
+  void lockOfCrashedProcessIsReleased() throws IOException, InterruptedException {
+    Path path = Files.createTempFile("unattach-quota", ".bucket");
+    try {
+      Process process = startWorker(path, "lock");
+      assertEquals("locked", readLine(process));
+      process.destroyForcibly().waitFor();
+      try (SharedTokenBucket bucket = createBucket(path)) {
+        assertEquals(0, bucket.tryTake(1));
+      }
+    } finally {
+      Files.deleteIfExists(path);
+    }
+  }
+
+  @Test
+  void instancesWithinOneProcessShareOneBudget() throws IOException {
+    Path path = Files.createTempFile("unattach-quota", ".bucket");
+    try (SharedTokenBucket first = createBucket(path); SharedTokenBucket second = createBucket(path)) {
+      assertEquals(0, first.tryTake(60));
+      assertTrue(second.tryTake(60) > 0);
+      assertEquals(0, second.tryTake(30));
+    } finally {
+      Files.deleteIfExists(path);
+    }
+  }
+
+  @Test
+  void interruptDoesNotDisableTheBucket() throws IOException, InterruptedException {
+    Path path = Files.createTempFile("unattach-quota", ".bucket");
+    try (SharedTokenBucket bucket = createBucket(path)) {
+      AtomicLong interruptedWaitNanos = new AtomicLong(-1);
+      Thread thread = new Thread(() -> {
+        // The interrupt closes the channel as soon as the thread waits for the lock.
+        Thread.currentThread().interrupt();
+        interruptedWaitNanos.set(bucket.tryTake(1));
+      });
+      thread.start();
+      thread.join();
+      assertEquals(0, interruptedWaitNanos.get());
+      // The bucket still enforces the budget for the other threads.
+      assertEquals(0, bucket.tryTake(UNITS_PER_SECOND - 1));
+      assertTrue(bucket.tryTake(UNITS_PER_SECOND) > 0);
+    } finally {
+      Files.deleteIfExists(path);
+    }
+  }
+}
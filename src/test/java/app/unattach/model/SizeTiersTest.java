@@ -0,0 +1,33 @@
+package app.unattach.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SizeTiersTest {
+  private static final long MB = Constants.BYTES_IN_MEGABYTE;
+
+  @Test
+  void tiersGoFromLargestToSmallest() {
+    assertEquals(List.of(
+        "has:attachment larger:" + 25 * MB,
+        "has:attachment larger:" + 10 * MB + " smaller:" + (25 * MB + 1),
+        "has:attachment larger:" + 5 * MB + " smaller:" + (10 * MB + 1),
+        "has:attachment larger:" + 2 * MB + " smaller:" + (5 * MB + 1),
+        "has:attachment larger:" + MB + " smaller:" + (2 * MB + 1),
+        "has:attachment smaller:" + (MB + 1)
+    ), SizeTiers.getQueries("has:attachment", 0));
+  }
+
+  @Test
+  void tiersStartAtTheMinimumSize() {
+    assertEquals(List.of(
+        "has:attachment larger:" + 25 * MB,
+        "has:attachment larger:" + 10 * MB + " smaller:" + (25 * MB + 1),
+        "has:attachment larger:" + 5 * MB + " smaller:" + (10 * MB + 1)
+    ), SizeTiers.getQueries("has:attachment", 5));
+    assertEquals(List.of("has:attachment larger:" + 50 * MB), SizeTiers.getQueries("has:attachment", 50));
+  }
+}
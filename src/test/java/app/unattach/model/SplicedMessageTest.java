@@ -0,0 +1,162 @@
+package app.unattach.model;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedFileInputStream;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SplicedMessageTest {
+  private static final String HEADERS =
+      "From: from@example.com\r\n" +
+      "Subject: Test\r\n" +
+      "Message-ID: <original@example.com>\r\n" +
+      "MIME-Version: 1.0\r\n" +
+      "Content-Type: multipart/mixed; boundary=\"outer\"\r\n";
+  private static final String ALTERNATIVE =
+      "Content-Type: multipart/alternative; boundary=\"inner\"\r\n" +
+      "\r\n" +
+      "--inner\r\n" +
+      "Content-Type: text/plain; charset=us-ascii\r\n" +
+      "\r\n" +
+      "Hello.\r\n" +
+      "--inner\r\n" +
+      "Content-Type: text/html; charset=us-ascii\r\n" +
+      "\r\n" +
+      "<p>Hello.</p>\r\n" +
+      "--inner--";
+  private static final String ATTACHMENT =
+      "\r\n--outer\r\n" +
+      "Content-Type: application/octet-stream; name=\"a.bin\"\r\n" +
+      "Content-Disposition: attachment; filename=\"a.bin\"\r\n" +
+      "Content-Transfer-Encoding: base64\r\n" +
+      "\r\n" +
+      "AAECAw==";
+  private static final String EMAIL = HEADERS + "\r\n" +
+      "Preamble.\r\n" +
+      "--outer\r\n" +
+      ALTERNATIVE +
+      ATTACHMENT +
+      "\r\n--outer--\r\n" +
+      "Epilogue.\r\n";
+  private static final String ORIGINAL_ID_HEADER = "X-Unattach-Original-Id: abc\r\n";
+
+  private File directory;
+  private File rawFile;
+  private SharedFileInputStream raw;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    directory = Files.createTempDirectory("spliced-message-test").toFile();
+    rawFile = new File(directory, "raw.eml");
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    if (raw != null) {
+      raw.close();
+    }
+    FileUtils.deleteDirectory(directory);
+  }
+
+  private SplicedMessage scan(String email) throws IOException, MessagingException {
+    Files.write(rawFile.toPath(), email.getBytes(StandardCharsets.ISO_8859_1));
+    raw = new SharedFileInputStream(rawFile);
+    return SplicedMessage.scan(raw, rawFile.length());
+  }
+
+  private ProcessSettings getProcessSettings(boolean addMetadata) {
+    return new ProcessSettings(new ProcessOption(false, true, true), directory, "${ATTACHMENT_NAME}", addMetadata);
+  }
+
+  private static Email getEmail() {
+    return new Email("abc", "abc", Collections.emptyList(), "from@example.com", "Test", 0, EMAIL.length());
+  }
+
+  private static String write(SplicedMessage splicedMessage) throws IOException, MessagingException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    splicedMessage.writeTo(outputStream, "X-Unattach-Original-Id", "abc");
+    return outputStream.toString(StandardCharsets.ISO_8859_1);
+  }
+
+  @Test
+  void scansTheOffsetsOfNestedParts() throws IOException, MessagingException {
+    SplicedMessage splicedMessage = scan(EMAIL);
+    assertEquals(2, splicedMessage.getParts().size());
+    SplicedMessage.Part alternative = splicedMessage.getParts().get(0);
+    assertEquals(EMAIL.indexOf(ALTERNATIVE), alternative.start);
+    assertEquals(EMAIL.indexOf(ALTERNATIVE) + ALTERNATIVE.length(), alternative.end);
+    assertEquals(2, alternative.children.size());
+    assertTrue(alternative.children.get(1).bodyPart.isMimeType("text/html"));
+    SplicedMessage.Part attachment = splicedMessage.getParts().get(1);
+    assertEquals(EMAIL.indexOf(ATTACHMENT), attachment.delimiterStart);
+    assertEquals(EMAIL.indexOf(ATTACHMENT) + ATTACHMENT.length(), attachment.end);
+  }
+
+  @Test
+  void copiesEverythingButTheAttachmentVerbatim() throws IOException, MessagingException {
+    SplicedMessage splicedMessage = scan(EMAIL);
+    Set<String> fileNames = EmailProcessor.process(getEmail(), splicedMessage, getProcessSettings(false));
+    assertEquals(Collections.singleton("a.bin"), fileNames);
+    assertArrayEquals(new byte[] {0, 1, 2, 3}, Files.readAllBytes(new File(directory, "a.bin").toPath()));
+    String expected = HEADERS + ORIGINAL_ID_HEADER + EMAIL.substring(HEADERS.length()).replace(ATTACHMENT, "");
+    assertEquals(expected, write(splicedMessage));
+  }
+
+  @Test
+  void splicesInTheChangedTextParts() throws Exception {
+    SplicedMessage splicedMessage = scan(EMAIL);
+    EmailProcessor.process(getEmail(), splicedMessage, getProcessSettings(true));
+    String slim = write(splicedMessage);
+    assertTrue(slim.startsWith(HEADERS + ORIGINAL_ID_HEADER + "\r\nPreamble.\r\n--outer\r\n"));
+    assertTrue(slim.endsWith("--inner--\r\n--outer--\r\nEpilogue.\r\n"));
+    MimeMessage mimeMessage = new MimeMessage(Session.getInstance(new Properties()),
+        new ByteArrayInputStream(slim.getBytes(StandardCharsets.ISO_8859_1)));
+    assertEquals("<original@example.com>", mimeMessage.getMessageID());
+    Multipart mixed = (Multipart) mimeMessage.getContent();
+    assertEquals(1, mixed.getCount());
+    Multipart alternative = (Multipart) mixed.getBodyPart(0).getContent();
+    String text = (String) alternative.getBodyPart(0).getContent();
+    assertTrue(text.startsWith("Hello."));
+    assertTrue(text.contains(" - a.bin (filename: a.bin)"));
+    String html = (String) alternative.getBodyPart(1).getContent();
+    assertTrue(html.contains("<p>Hello.</p>"));
+    assertTrue(html.contains("<li>a.bin"));
+  }
+
+  @Test
+  void keepsTheLineSeparatorOfTheEmail() throws IOException, MessagingException {
+    String email = EMAIL.replace("\r\n", "\n");
+    SplicedMessage splicedMessage = scan(email);
+    EmailProcessor.process(getEmail(), splicedMessage, getProcessSettings(false));
+    String expected = HEADERS.replace("\r\n", "\n") + ORIGINAL_ID_HEADER.replace("\r\n", "\n") +
+        email.substring(HEADERS.length() - 5).replace(ATTACHMENT.replace("\r\n", "\n"), "");
+    assertEquals(expected, write(splicedMessage));
+  }
+
+  @Test
+  void onlyAddsTheHeaderToASinglePart() throws IOException, MessagingException {
+    String email = "Subject: Test\r\nContent-Type: text/plain\r\n\r\nHello.\r\n";
+    SplicedMessage splicedMessage = scan(email);
+    assertTrue(splicedMessage.getParts().isEmpty());
+    assertEquals(email.replace("\r\n\r\n", "\r\n" + ORIGINAL_ID_HEADER + "\r\n"), write(splicedMessage));
+  }
+
+  @Test
+  void rejectsAMultipartWithoutBoundaries() {
+    assertThrows(MessagingException.class, () -> scan(HEADERS + "\r\nNo boundaries.\r\n"));
+  }
+}
@@ -0,0 +1,152 @@
+package app.unattach.model;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.ClientParametersAuthentication;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenRefresherTest {
+  private HttpServer tokenServer;
+  private final AtomicInteger tokenRequests = new AtomicInteger();
+  private final CountDownLatch releaseTokenResponse = new CountDownLatch(1);
+  private volatile boolean omitExpiry;
+
+  @BeforeEach
+  void startTokenServer() throws IOException {
+    tokenServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    tokenServer.createContext("/token", exchange -> {
+      int requestNumber = tokenRequests.incrementAndGet();
+      try {
+        releaseTokenResponse.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      String body = "{\"access_token\": \"token-" + (requestNumber + 1) + "\"" +
+          (omitExpiry ? "" : ", \"expires_in\": 3600") + "}";
+      byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().add("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, bytes.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(bytes);
+      }
+    });
+    tokenServer.start();
+  }
+
+  @AfterEach
+  void stopTokenServer() {
+    tokenServer.stop(0);
+  }
+
+  private Credential createCredential(long expiresInSeconds) {
+    String tokenServerUrl = "http://localhost:" + tokenServer.getAddress().getPort() + "/token";
+    Credential credential = new Credential.Builder(BearerToken.authorizationHeaderAccessMethod())
+        .setTransport(new NetHttpTransport())
+        .setJsonFactory(JacksonFactory.getDefaultInstance())
+        .setTokenServerEncodedUrl(tokenServerUrl)
+        .setClientAuthentication(new ClientParametersAuthentication("client-id", "client-secret"))
+        .build();
+    credential.setAccessToken("token-1");
+    credential.setRefreshToken("refresh-token");
+    credential.setExpiresInSeconds(expiresInSeconds);
+    return credential;
+  }
+
+  private static String getAuthorizationHeader(Credential credential) throws IOException {
+    HttpRequest request = new NetHttpTransport().createRequestFactory()
+        .buildGetRequest(new GenericUrl("http://localhost/"));
+    credential.intercept(request);
+    return request.getHeaders().getAuthorization();
+  }
+
+  @Test
+  void refreshesAheadOfExpiryWithoutBlockingRequests() throws Exception {
+    // far enough from expiry that the credential does not refresh the token itself when intercepting requests
+    Credential credential = createCredential(120);
+    try (TokenRefresher refresher = new TokenRefresher(credential, Duration.ofSeconds(119))) {
+      refresher.start();
+      long deadline = System.currentTimeMillis() + 5000;
+      while (tokenRequests.get() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, tokenRequests.get());
+      // While the token server is slow, requests still go out with the current token.
+      long startMillis = System.currentTimeMillis();
+      assertEquals("Bearer token-1", getAuthorizationHeader(credential));
+      assertTrue(System.currentTimeMillis() - startMillis < 1000);
+      releaseTokenResponse.countDown();
+      while (!"token-2".equals(credential.getAccessToken()) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals("Bearer token-2", getAuthorizationHeader(credential));
+      assertTrue(credential.getExpiresInSeconds() > 3000);
+      assertEquals(1, tokenRequests.get());
+    }
+  }
+
+  @Test
+  void doesNotRefreshEarly() throws Exception {
+    releaseTokenResponse.countDown();
+    Credential credential = createCredential(3600);
+    try (TokenRefresher refresher = new TokenRefresher(credential, Duration.ofSeconds(60))) {
+      refresher.start();
+      Thread.sleep(500);
+      assertEquals(0, tokenRequests.get());
+      assertEquals("token-1", credential.getAccessToken());
+    }
+  }
+
+  @Test
+  void refreshInFlightWhenClosedLeavesCredentialAlone() throws Exception {
+    Credential credential = createCredential(120);
+    TokenRefresher refresher = new TokenRefresher(credential, Duration.ofSeconds(119));
+    refresher.start();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (tokenRequests.get() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, tokenRequests.get());
+    refresher.close();
+    releaseTokenResponse.countDown();
+    Thread.sleep(500);
+    assertEquals("token-1", credential.getAccessToken());
+    assertEquals(1, tokenRequests.get());
+  }
+
+  @Test
+  void stopsRefreshingWhenTheExpiryIsUnknown() throws Exception {
+    releaseTokenResponse.countDown();
+    omitExpiry = true;
+    Credential credential = createCredential(120);
+    try (TokenRefresher refresher = new TokenRefresher(credential, Duration.ofSeconds(120))) {
+      refresher.start();
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!"token-2".equals(credential.getAccessToken()) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals("token-2", credential.getAccessToken());
+      assertNull(credential.getExpiresInSeconds());
+      Thread.sleep(500);
+      assertEquals(1, tokenRequests.get());
+    }
+  }
+}